@@ -22,22 +22,63 @@
 
 package freejavacode.parser;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This class was the result of not finding an existing Java library that
@@ -74,6 +115,9 @@ public class HtmlParser
     private static final byte ATTR_QUOTE1 = ( byte )'\'';
     private static final byte ATTR_QUOTE2 = ( byte )'"';
     
+    private static final Charset LATIN1 = Charset.forName( "ISO-8859-1" );
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    
     private static final char XML_AMPERSAND = '&';
     private static final char XML_SEMICOLON = ';';
     
@@ -343,40 +387,160 @@ public class HtmlParser
         mEntityNames = Collections.unmodifiableMap( hm );
     };
     
-    /**
-     * Hash map of "void elements" for HTML 4.01 and HTML 5.
-     */
-    public static final Map< String, String > mVoidElements;
+    // Element classification flags
+    private static final int ELEM_VOID = 1; // no content, start tag is empty
+    private static final int ELEM_RAW_TEXT = 2; // body skipped to the end tag (script, style)
+    private static final int ELEM_BLOCK = 4; // closes an open "p" in HTML 5
+    
+    // Element names (lower case) to ids, and the flags of each id
+    private static final HashMap< String, Integer > hmElementIds = new HashMap< String, Integer >();
+    private static final int[] aiElementFlags;
+    
+    private static void addElement( HashMap< String, Integer > hmFlags, String name, int flags )
+    {
+        Integer old = hmFlags.get( name );
+        hmFlags.put( name, old == null ? flags : old | flags );
+    }
+    
     static
     {
-        HashMap< String, String > hm = new HashMap< String, String >();
+        HashMap< String, Integer > hmFlags = new HashMap< String, Integer >();
+        
         // HTML 4.01:
         //  area, base, basefont, br, col, frame, hr, img, input, isindex,
         //  link, meta, param
         // HTML 5:
         //  area, base, br, col, command, embed, hr, img, input, keygen,
         //  link, meta, param, source, track, wbr
-        hm.put( "area", "area" );
-        hm.put( "base", "base" );
-        hm.put( "basefont", "basefont" );
-        hm.put( "br", "br" );
-        hm.put( "col", "col" );
-        hm.put( "command", "command" );
-        hm.put( "embed", "embed" );
-        hm.put( "frame", "frame" );
-        hm.put( "hr", "hr" );
-        hm.put( "img", "img" );
-        hm.put( "input", "input" );
-        hm.put( "isindex", "isindex" );
-        hm.put( "keygen", "keygen" );
-        hm.put( "link", "link" );
-        hm.put( "meta", "meta" );
-        hm.put( "param", "param" );
-        hm.put( "source", "source" );
-        hm.put( "track", "track" );
-        hm.put( "wr", "wr" );
+        String[] voids = { "area", "base", "basefont", "br", "col", "command", "embed",
+                           "frame", "hr", "img", "input", "isindex", "keygen", "link",
+                           "meta", "param", "source", "track", "wbr" };
+        for( int i = 0; i < voids.length; i++ )
+            addElement( hmFlags, voids[ i ], ELEM_VOID );
+        addElement( hmFlags, "script", ELEM_RAW_TEXT );
+        addElement( hmFlags, "style", ELEM_RAW_TEXT );
+        String[] blocks = { "address", "article", "aside", "blockquote", "center", "details",
+                            "dialog", "dir", "div", "dl", "fieldset", "figcaption", "figure",
+                            "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header",
+                            "hgroup", "hr", "listing", "main", "menu", "nav", "ol", "p",
+                            "plaintext", "pre", "section", "summary", "table", "ul", "xmp" };
+        for( int i = 0; i < blocks.length; i++ )
+            addElement( hmFlags, blocks[ i ], ELEM_BLOCK );
+        
+        aiElementFlags = new int[ hmFlags.size() ];
+        Iterator< Map.Entry< String, Integer > > it = hmFlags.entrySet().iterator();
+        while( it.hasNext() )
+        {
+            Map.Entry< String, Integer > e = it.next();
+            int id = hmElementIds.size();
+            hmElementIds.put( e.getKey(), id );
+            aiElementFlags[ id ] = e.getValue();
+        }
+    };
+    
+    // Flags of an element name (lower case)
+    private static int elementFlags( String lower )
+    {
+        Integer id = hmElementIds.get( lower );
+        return( id == null ? 0 : aiElementFlags[ id ] );
+    }
+    
+    /**
+     * Hash map of "void elements" for HTML 4.01 and HTML 5.
+     */
+    public static final Map< String, String > mVoidElements;
+    static
+    {
+        HashMap< String, String > hm = new HashMap< String, String >();
+        Iterator< Map.Entry< String, Integer > > it = hmElementIds.entrySet().iterator();
+        while( it.hasNext() )
+        {
+            Map.Entry< String, Integer > e = it.next();
+            if( ( aiElementFlags[ e.getValue() ] & ELEM_VOID ) != 0 )
+                hm.put( e.getKey(), e.getKey() );
+        }
         mVoidElements = Collections.unmodifiableMap( hm );
     };
+    
+    // HTML 5 implied end tag rule: closes the open elements down to the
+    // nearest target, if there's one above a boundary (or on top only)
+    private static class ImpliedEnd
+    {
+        public String[] asTargets;
+        public HashMap< String, String > hmTargets = new HashMap< String, String >();
+        public HashMap< String, String > hmBoundaries = new HashMap< String, String >();
+        public boolean topOnly;
+        
+        public ImpliedEnd( String[] targets, String[] boundaries, boolean top )
+        {
+            asTargets = targets;
+            for( int i = 0; i < targets.length; i++ )
+                hmTargets.put( targets[ i ], targets[ i ] );
+            for( int i = 0; boundaries != null && i < boundaries.length; i++ )
+                hmBoundaries.put( boundaries[ i ], boundaries[ i ] );
+            topOnly = top;
+        }
+    };
+    
+    // Rules applied, in order, for a start (or empty) tag by lower case name
+    private static final HashMap< String, ImpliedEnd[] > hmImpliedEnds = new HashMap< String, ImpliedEnd[] >();
+    static
+    {
+        String[] scope = { "applet", "caption", "html", "marquee", "object", "table",
+                           "td", "template", "th", "math", "svg" };
+        String[] buttonScope = { "applet", "button", "caption", "html", "marquee", "object",
+                                 "table", "td", "template", "th", "math", "svg" };
+        String[] listScope = { "applet", "button", "caption", "html", "marquee", "object",
+                               "table", "td", "template", "th", "math", "svg",
+                               "body", "dir", "dl", "menu", "ol", "ul" };
+        String[] tableScope = { "html", "table", "template" };
+        String[] sectionScope = { "html", "table", "tbody", "template", "tfoot", "thead" };
+        String[] rowScope = { "html", "table", "tbody", "template", "tfoot", "thead", "tr" };
+        String[] headings = { "h1", "h2", "h3", "h4", "h5", "h6" };
+        
+        ImpliedEnd paragraph = new ImpliedEnd( new String[] { "p" }, buttonScope, false );
+        ImpliedEnd heading = new ImpliedEnd( headings, null, true );
+        ImpliedEnd listItem = new ImpliedEnd( new String[] { "li" }, listScope, false );
+        ImpliedEnd definition = new ImpliedEnd( new String[] { "dd", "dt" }, listScope, false );
+        ImpliedEnd option = new ImpliedEnd( new String[] { "option" }, null, true );
+        ImpliedEnd optgroup = new ImpliedEnd( new String[] { "optgroup" }, null, true );
+        ImpliedEnd cell = new ImpliedEnd( new String[] { "td", "th" }, rowScope, false );
+        ImpliedEnd row = new ImpliedEnd( new String[] { "tr" }, sectionScope, false );
+        ImpliedEnd section = new ImpliedEnd( new String[] { "tbody", "tfoot", "thead" }, tableScope, false );
+        ImpliedEnd anchor = new ImpliedEnd( new String[] { "a" }, scope, false );
+        ImpliedEnd button = new ImpliedEnd( new String[] { "button" }, scope, false );
+        ImpliedEnd nobr = new ImpliedEnd( new String[] { "nobr" }, scope, false );
+        ImpliedEnd ruby = new ImpliedEnd( new String[] { "rb", "rp", "rt", "rtc" }, buttonScope, false );
+        ImpliedEnd rubyText = new ImpliedEnd( new String[] { "rb", "rp", "rt" }, buttonScope, false );
+        
+        Iterator< Map.Entry< String, Integer > > it = hmElementIds.entrySet().iterator();
+        while( it.hasNext() )
+        {
+            Map.Entry< String, Integer > e = it.next();
+            if( ( aiElementFlags[ e.getValue() ] & ELEM_BLOCK ) != 0 )
+                hmImpliedEnds.put( e.getKey(), new ImpliedEnd[] { paragraph } );
+        }
+        for( int i = 0; i < headings.length; i++ )
+            hmImpliedEnds.put( headings[ i ], new ImpliedEnd[] { paragraph, heading } );
+        hmImpliedEnds.put( "li", new ImpliedEnd[] { listItem, paragraph } );
+        hmImpliedEnds.put( "dd", new ImpliedEnd[] { definition, paragraph } );
+        hmImpliedEnds.put( "dt", new ImpliedEnd[] { definition, paragraph } );
+        hmImpliedEnds.put( "option", new ImpliedEnd[] { option } );
+        hmImpliedEnds.put( "optgroup", new ImpliedEnd[] { option, optgroup } );
+        hmImpliedEnds.put( "td", new ImpliedEnd[] { cell } );
+        hmImpliedEnds.put( "th", new ImpliedEnd[] { cell } );
+        hmImpliedEnds.put( "tr", new ImpliedEnd[] { cell, row } );
+        hmImpliedEnds.put( "tbody", new ImpliedEnd[] { cell, row, section } );
+        hmImpliedEnds.put( "tfoot", new ImpliedEnd[] { cell, row, section } );
+        hmImpliedEnds.put( "thead", new ImpliedEnd[] { cell, row, section } );
+        hmImpliedEnds.put( "a", new ImpliedEnd[] { anchor } );
+        hmImpliedEnds.put( "button", new ImpliedEnd[] { button, paragraph } );
+        hmImpliedEnds.put( "nobr", new ImpliedEnd[] { nobr } );
+        hmImpliedEnds.put( "rb", new ImpliedEnd[] { ruby } );
+        hmImpliedEnds.put( "rtc", new ImpliedEnd[] { ruby } );
+        hmImpliedEnds.put( "rp", new ImpliedEnd[] { rubyText } );
+        hmImpliedEnds.put( "rt", new ImpliedEnd[] { rubyText } );
+    };
 
     private enum HtmlPartType
     {
@@ -395,30 +559,150 @@ public class HtmlParser
         TEXT_STYLE
     };
 
-    private class HtmlPart
+    private static class HtmlPart
     {
         public HtmlPartType type;
         public String value;
         public int offset;
         public int level = 0;
+        public int end = -1; // end of the bytes a made up attribute name stands for
+    };
+    
+    // Parse issues, each a message and the position in the input it's at
+    // (-1 for none), read as "<message> at <position>".  The positions are
+    // kept apart so that "parseDataEdit()" can move them.
+    private static class IssueList
+    {
+        private ArrayList< String > alMessages = new ArrayList< String >();
+        private IntList ilPositions = new IntList();
+        
+        public void add( String message, int pos )
+        {
+            alMessages.add( message );
+            ilPositions.add( pos );
+        }
+        
+        public void add( String message )
+        {
+            add( message, -1 );
+        }
+        
+        // Adds the issues from..to of another list, moved by delta
+        public void addAll( IssueList il, int from, int to, int delta )
+        {
+            for( int i = from; i < to; i++ )
+            {
+                int pos = il.ilPositions.ai[ i ];
+                add( il.alMessages.get( i ), pos == -1 ? -1 : pos + delta );
+            }
+        }
+        
+        public String get( int index )
+        {
+            int pos = ilPositions.ai[ index ];
+            return( pos == -1 ? alMessages.get( index ) : alMessages.get( index ) + " at " + pos );
+        }
+        
+        public int size()
+        {
+            return( alMessages.size() );
+        }
+        
+        public void truncate( int size )
+        {
+            alMessages.subList( size, alMessages.size() ).clear();
+            ilPositions.size = size;
+        }
+        
+        public void clear()
+        {
+            truncate( 0 );
+        }
+        
+        public String[] toArray()
+        {
+            String[] as = new String[ size() ];
+            for( int i = 0; i < as.length; i++ )
+                as[ i ] = get( i );
+            return( as );
+        }
     };
     
     private ArrayList< HtmlPart > alItems = new ArrayList< HtmlPart >();
-    private ArrayList< String > alIssues = new ArrayList< String >();
+    private IssueList ilIssues = new IssueList();
 
-    private JavaCharsets jc = new JavaCharsets();
+    private static final JavaCharsets jc = new JavaCharsets(); // read only, shared
     private String encodingTags = "UTF-8";
     private String encodingText = "UTF-8";
     private boolean encodingFound = false;
     private boolean encodingRestart = true;
+    private CharsetDecoder decoderTags = newDecoder( UTF8 );
+    private CharsetDecoder decoderText = null;
+    private boolean asciiText = true;
     
     private ByteBuffer bb;
+    private int inputLength = 0;
     private byte b;
+    private byte[] abScratch = new byte[ 256 ];
+    private byte[] abSniff;
+    private CharBuffer cbScratch = CharBuffer.allocate( 256 );
+    private int nameValidity = 1;
+    private String nameLower = null;
     
     private boolean debugParser = false;
     private boolean debugValidate = false;
     private boolean configValidate = true;
     private boolean configElemAttrLowerCase = false;
+    private int configSniffLimit = 4096;
+    private ParseCache configCache = null;
+    private boolean configIncremental = false;
+    private ForkJoinPool configPool = null;
+    private int configChunkSize = 1 << 20;
+    private boolean configImpliedEndTags = false;
+    private boolean configExtractText = false;
+    private HashMap< String, String > hmExtractElements = null;
+    private HashMap< String, String > hmExtractAttributes = null;
+    private boolean extracting = false;
+    private boolean extracted = false; // results of extraction mode
+    private boolean extractElement = false;
+    private boolean extractAttribute = false;
+    private ExecutorService configExecutor = null;
+    private Workers wAsyncWorkers = null;
+    
+    // Parts recycled from one document to the next (see "configArena()"),
+    // the first partsUsed are in use
+    private HtmlPart[] ahpArena = null;
+    private int partsUsed = 0;
+    
+    // Scratch buffers kept from one call to the next at the size of their
+    // largest use, up to configScratchLimit bytes (see "configScratchLimit()")
+    private int configScratchLimit = 1 << 24;
+    private ByteBuffer bbInputScratch = null;
+    private ByteBuffer bbValuesScratch = null;
+    private ByteArrayOutputStream baosScratch = null;
+    private StringBuilder sbScratch = null;
+    private ByteBuffer bbChannelScratch = null;
+    
+    // Kept for "parseDataEdit()": tokens before validation, the item each
+    // became, and the points where the tokenizer's state is only its position
+    private ArrayList< HtmlPart > alTokens = null;
+    private ArrayList< HtmlPart > alTokenItems = null;
+    private boolean tokensValidated = false;
+    private boolean tokensImplied = false;
+    private int[] aiSyncPos = new int[ 0 ];
+    private int[] aiSyncItems = new int[ 0 ];
+    private int[] aiSyncIssues = new int[ 0 ];
+    private int syncCount = 0;
+    private int syncIssueBase = 0;
+    private int encodingOffset = -1;
+    private int[] aiResyncPos = null;
+    private int resyncCount = 0;
+    private int resyncFrom = 0;
+    private int resyncMin = 0;
+    private int resyncDelta = 0;
+    private int resyncIndex = -1;
+    private int syncStop = Integer.MAX_VALUE;
+    private boolean syncStopped = false;
     
     private String doctypeRootElement = "html"; // Needed for DOCTYPE declaration
     
@@ -429,6 +713,32 @@ public class HtmlParser
     {
     }
     
+    // Parser holding the results of a snapshot again, for its "get" and
+    // "write" methods (see "ParseResult"); items only if asked for
+    HtmlParser( ParseResult result, boolean items )
+    {
+        setEncodingText( result.encoding );
+        doctypeRootElement = result.doctypeRootElement;
+        configElemAttrLowerCase = result.elemAttrLowerCase;
+        inputLength = result.numInputBytes;
+        extracted = result.extracted;
+        for( int i = 0; i < result.asIssues.length; i++ )
+            ilIssues.add( result.asIssues[ i ] );
+        if( !items )
+            return;
+        HtmlPartType[] types = HtmlPartType.values();
+        alItems.ensureCapacity( result.asValues.length );
+        for( int i = 0; i < result.asValues.length; i++ )
+        {
+            HtmlPart hp = new HtmlPart();
+            hp.type = types[ result.abTypes[ i ] ];
+            hp.value = result.asValues[ i ];
+            hp.offset = result.aiOffsets[ i ];
+            hp.level = result.aiLevels[ i ];
+            alItems.add( hp );
+        }
+    }
+    
     /**
      * Flag to dump out debug information during "pass one" (breaking into
      * tokens).  Call before the "parse()" methods.
@@ -473,19 +783,344 @@ public class HtmlParser
         configElemAttrLowerCase = lowerCase;
     }
     
-    private String grabString( int pos0, int pos1, String encoding )
+    /**
+     * Flag to close elements where HTML 5 implies an end tag before
+     * "pass two", for example an open "p" at the next block element, an
+     * "li" at the next "li" or a "td" at the next cell or row.  Soup of
+     * these then makes a shallow tree, closer to what browsers build,
+     * instead of nesting them.  Only used with "configValidate()".
+     * Call before the "parse()" methods.
+     * 
+     * @param implied pass true or false (default: false)
+     */
+    public void configImpliedEndTags( boolean implied )
+    {
+        configImpliedEndTags = implied;
+    }
+    
+    /**
+     * Cache to look up parse results in before parsing and to store them
+     * in after, by the hash of the input and configuration.  The same cache
+     * can be shared by many parsers.  Not used by the "EncodingOnly"
+     * methods.  Call before the "parse()" methods.
+     * 
+     * @param cache A cache or null for none (default: null)
+     */
+    public void configCache( ParseCache cache )
+    {
+        configCache = cache;
+    }
+    
+    /**
+     * Flag to keep the tokens and tokenizer positions needed by
+     * "parseDataEdit()" to re-parse only the edited part of a document.
+     * Uses about twice the memory.  Call before the "parse()" methods.
+     * 
+     * @param incremental pass true or false (default: false)
+     */
+    public void configIncremental( boolean incremental )
+    {
+        configIncremental = incremental;
+    }
+    
+    /**
+     * Pool on which to break documents larger than the chunk size into
+     * tokens in parallel (see "configParallelChunk()").  The results are the
+     * same as when parsing sequentially.  Call before the "parse()" methods.
+     * 
+     * @param pool A pool or null to parse sequentially (default: null)
+     */
+    public void configParallel( ForkJoinPool pool )
+    {
+        configPool = pool;
+    }
+    
+    /**
+     * Size of the chunks documents are broken into when parsing in
+     * parallel (see "configParallel()").  Call before the "parse()" methods.
+     * 
+     * @param bytes Size of a chunk in bytes (default: 1048576)
+     */
+    public void configParallelChunk( int bytes )
+    {
+        configChunkSize = Math.max( bytes, 1 );
+    }
+    
+    /**
+     * Executor on which "parseFileAsync()" and "parseDataAsync()" parse,
+     * each document by a parser of its own with this parser's configuration
+     * as it is when called: call after the other "config()" methods, and
+     * again for later changes to apply to the asynchronous parses.  Without
+     * one, the "Async()" methods throw {@link IllegalStateException}.
+     * 
+     * @param executor An executor or null (default: null)
+     */
+    public void configAsync( ExecutorService executor )
+    {
+        configExecutor = executor;
+        wAsyncWorkers = new Workers( newWorker() );
+    }
+    
+    /**
+     * Same as "configAsync( ExecutorService )" with an executor of the
+     * given number of (daemon) threads and at most the given number of
+     * documents waiting for one.  The threads end after a minute idle.
+     * Past that, the documents are handed to the given policy, for
+     * example {@link ThreadPoolExecutor.AbortPolicy}
+     * (the "Async()" methods throw) or
+     * {@link ThreadPoolExecutor.CallerRunsPolicy} (parsed by the caller).
+     * 
+     * @param threads Number of threads
+     * @param queue Number of documents waiting at most
+     * @param policy Policy for the documents over the limit
+     * @return The executor, to be shut down when done.
+     */
+    public ExecutorService configAsync( int threads, int queue, RejectedExecutionHandler policy )
+    {
+        final AtomicInteger aiThreads = new AtomicInteger();
+        ThreadFactory tf = new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "HtmlParser-async-" + aiThreads.incrementAndGet() );
+                t.setDaemon( true );
+                return( t );
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                                              new ArrayBlockingQueue< Runnable >( Math.max( queue, 1 ) ),
+                                                              tf, policy );
+        executor.allowCoreThreadTimeOut( true );
+        configAsync( executor );
+        return( executor );
+    }
+    
+    /**
+     * Flag to recycle the parse items (tokens) of one document for the
+     * next, so that parsing a stream of documents makes little garbage.
+     * Holds on to as many items as the largest document parsed had; the
+     * items made by "parseDataEdit()" are not recycled.  Call before the
+     * "parse()" methods.
+     * 
+     * @param arena pass true or false (default: false)
+     */
+    public void configArena( boolean arena )
+    {
+        if( !arena )
+            ahpArena = null;
+        else if( ahpArena == null )
+            ahpArena = new HtmlPart[ 256 ];
+        partsUsed = 0;
+    }
+    
+    /**
+     * Largest size in bytes of the scratch buffers kept from one call to
+     * the next, for the input and for the output of the "get" and "write"
+     * methods.  Each grows to the largest use so far and is then reused, so
+     * that similar sized documents don't allocate them again; larger uses
+     * allocate buffers only for the call.  Pass 0 to keep none.
+     * 
+     * @param bytes The largest size kept (default: 16 MB)
+     */
+    public void configScratchLimit( int bytes )
+    {
+        configScratchLimit = Math.max( bytes, 0 );
+        if( bbInputScratch != null && bbInputScratch.capacity() > configScratchLimit )
+            bbInputScratch = null;
+        if( bbValuesScratch != null && bbValuesScratch.capacity() > configScratchLimit )
+            bbValuesScratch = null;
+        baosScratch = null;
+        sbScratch = null;
+        if( bbChannelScratch != null && bbChannelScratch.capacity() > configScratchLimit )
+            bbChannelScratch = null;
+        if( abScratch.length > Math.max( configScratchLimit, 256 ) )
+            abScratch = new byte[ 256 ];
+    }
+    
+    // Input buffer of the given size, the scratch one if large enough
+    private ByteBuffer inputBuffer( int size )
+    {
+        ByteBuffer buf = bbInputScratch;
+        if( buf == null || buf.capacity() < size )
+        {
+            buf = ByteBuffer.allocate( size );
+            if( size <= configScratchLimit )
+                bbInputScratch = buf;
+        }
+        buf.clear();
+        buf.limit( size );
+        return( buf );
+    }
+    
+    // Output stream, empty, to be given back with "keepOutputStream()"
+    private ByteArrayOutputStream outputStream()
+    {
+        ByteArrayOutputStream baos = baosScratch;
+        baosScratch = null;
+        if( baos == null )
+            return( new ByteArrayOutputStream() );
+        baos.reset();
+        return( baos );
+    }
+    
+    private void keepOutputStream( ByteArrayOutputStream baos )
+    {
+        if( baos.size() <= configScratchLimit )
+            baosScratch = baos;
+    }
+    
+    // Characters, empty, to be given back with "keepChars()"
+    private StringBuilder chars( int capacity )
+    {
+        StringBuilder sb = sbScratch;
+        sbScratch = null;
+        if( sb == null )
+            return( new StringBuilder( capacity ) );
+        sb.setLength( 0 );
+        sb.ensureCapacity( capacity );
+        return( sb );
+    }
+    
+    private void keepChars( StringBuilder sb )
+    {
+        if( ( long )sb.capacity() * 2 <= configScratchLimit )
+            sbScratch = sb;
+    }
+    
+    /**
+     * Flag for extraction mode to keep the text tokens (outside of script
+     * and style).  In extraction mode only the tokens asked for are kept,
+     * the others are not decoded where possible, and the tokens are not
+     * validated.  The results are read by "getExtractedText()" and
+     * "getElementAttributes()" (or "getParseItems()"), the clean XML
+     * methods throw {@link IllegalStateException}.  Not cached or parsed
+     * incrementally.  Call before the "parse()" methods.
+     * 
+     * @param text pass true or false (default: false)
+     */
+    public void configExtractText( boolean text )
+    {
+        configExtractText = text;
+        extracting = configExtractText || hmExtractElements != null;
+    }
+    
+    /**
+     * Elements for extraction mode to keep the start (and empty) tags of,
+     * with their attributes (see "configExtractText()").  For example
+     * "a" and "meta" with "href", "name" and "content" for links and
+     * meta data.  Names are matched in any case.  Call before the "parse()"
+     * methods.
+     * 
+     * @param elements Element names or null for none (default: null)
+     * @param attributes Attribute names to keep or null for all
+     */
+    public void configExtractElements( String[] elements, String[] attributes )
+    {
+        hmExtractElements = null;
+        hmExtractAttributes = null;
+        if( elements != null )
+        {
+            hmExtractElements = new HashMap< String, String >();
+            for( int i = 0; i < elements.length; i++ )
+                hmExtractElements.put( elements[ i ].toLowerCase( Locale.ENGLISH ), elements[ i ] );
+            if( attributes != null )
+            {
+                hmExtractAttributes = new HashMap< String, String >();
+                for( int i = 0; i < attributes.length; i++ )
+                    hmExtractAttributes.put( attributes[ i ].toLowerCase( Locale.ENGLISH ), attributes[ i ] );
+            }
+        }
+        extracting = configExtractText || hmExtractElements != null;
+    }
+    
+    /**
+     * Maximum number of bytes read by the "sniff" methods when looking
+     * for the encoding directive, a negative number counting as 0.
+     * 
+     * @param bytes number of bytes (default: 4096)
+     */
+    public void configSniffLimit( int bytes )
+    {
+        configSniffLimit = Math.max( bytes, 0 );
+    }
+    
+    private String grabString( int pos0, int pos1, CharsetDecoder decoder )
+    {
+        return( grabString( pos0, pos1, decoder, false ) );
+    }
+    
+    // Tag or attribute name, also sets nameValidity (see "xmlNameValidity()")
+    // and nameLower, its lower case if valid
+    private String grabName( int pos0, int pos1 )
+    {
+        return( grabString( pos0, pos1, decoderTags, true ) );
+    }
+    
+    private String grabString( int pos0, int pos1, CharsetDecoder decoder, boolean name )
     {
-        bb.position( pos0 - 1 );
-        byte[] bytes = new byte[ pos1 - pos0 ];
-        bb.get( bytes, 0, pos1 - pos0 );
+        int len = pos1 - pos0;
+        
+        // Locate the token's bytes without copying them if possible
+        byte[] bytes;
+        int offset;
+        if( bb.hasArray() )
+        {
+            bytes = bb.array();
+            offset = bb.arrayOffset() + pos0 - 1;
+        }
+        else
+        {
+            if( abScratch.length < len )
+                abScratch = new byte[ Math.max( len, abScratch.length * 2 ) ];
+            bb.position( pos0 - 1 );
+            bb.get( abScratch, 0, len );
+            bytes = abScratch;
+            offset = 0;
+        }
         bb.position( pos1 - 1 );
         b = bb.get();
-        String s = "";
-        try
+        
+        // Pure ASCII (nearly all tag and attribute names) skips the decoder,
+        // and a name is classified in the same pass
+        boolean ascii = decoder == decoderTags || asciiText;
+        boolean upper = false;
+        int validity = 1;
+        for( int i = offset; ascii && i < offset + len; i++ )
         {
-            s = new String( bytes, encoding );
+            byte c = bytes[ i ];
+            if( c < 0 )
+                ascii = false;
+            else if( !name )
+                continue;
+            else if( c >= 'A' && c <= 'Z' )
+                upper = true;
+            else if( c == ATTR_QUOTE1 || c == ATTR_QUOTE2 || c == ATTR_EQUAL ||
+                     c == TAG_OPEN || c == TAG_CLOSE )
+                validity = -1;
+        }
+        String s;
+        if( ascii )
+            s = new String( bytes, offset, len, LATIN1 );
+        else
+            s = decode( bytes, offset, len, decoder );
+        
+        if( name )
+        {
+            if( ascii && len > 0 )
+            {
+                byte c = bytes[ offset ];
+                if( c == TAG_OPEN )
+                    validity = 0;
+                else if( !( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) ) )
+                    validity = -1;
+            }
+            else
+                validity = xmlNameValidity( s );
+            nameValidity = validity;
+            nameLower = null;
+            if( validity == 1 )
+                nameLower = upper || !ascii ? s.toLowerCase( Locale.ENGLISH ) : s;
         }
-        catch( Exception ex ) {}
         
         if( debugParser )
             System.out.println( "" + pos0 + " [" + s + "]" );
@@ -493,6 +1128,56 @@ public class HtmlParser
         return( s );
     }
     
+    private String decode( byte[] bytes, int offset, int len, CharsetDecoder decoder )
+    {
+        int max = ( int )( len * ( double )decoder.maxCharsPerByte() ) + 4;
+        if( cbScratch.capacity() < max )
+            cbScratch = CharBuffer.allocate( Math.max( max, cbScratch.capacity() * 2 ) );
+        cbScratch.clear();
+        decoder.reset();
+        ByteBuffer in = ByteBuffer.wrap( bytes, offset, len );
+        CoderResult cr = decoder.decode( in, cbScratch, true );
+        if( !cr.isOverflow() )
+            cr = decoder.flush( cbScratch );
+        if( cr.isOverflow() )
+            return( new String( bytes, offset, len, decoder.charset() ) );
+        return( new String( cbScratch.array(), 0, cbScratch.position() ) );
+    }
+    
+    private static CharsetDecoder newDecoder( Charset cs )
+    {
+        return( cs.newDecoder()
+                  .onMalformedInput( CodingErrorAction.REPLACE )
+                  .onUnmappableCharacter( CodingErrorAction.REPLACE ) );
+    }
+    
+    // True if ASCII bytes decode to the same ASCII characters
+    private static boolean isAsciiCompatible( Charset cs )
+    {
+        byte[] bytes = new byte[ 0x80 ];
+        for( int i = 0; i < bytes.length; i++ )
+            bytes[ i ] = ( byte )i;
+        String s = new String( bytes, cs );
+        if( s.length() != bytes.length )
+            return( false );
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            if( s.charAt( i ) != i )
+                return( false );
+        }
+        return( true );
+    }
+    
+    private void setEncodingText( String encoding )
+    {
+        if( encoding.equals( encodingText ) && decoderText != null )
+            return;
+        encodingText = encoding;
+        Charset cs = Charset.forName( encoding );
+        decoderText = newDecoder( cs );
+        asciiText = isAsciiCompatible( cs );
+    }
+    
     private boolean isWhiteSpace( byte bb )
     {
         return( bb == ATTR_SPACE ||
@@ -627,14 +1312,12 @@ public class HtmlParser
         return( false );
     }
     
-    private boolean hasEncodingDirective( String value, String search )
+    // Returns start and end index of the directive's value or null
+    private int[] findEncodingDirective( String value, String search )
     {
-        if( encodingFound )
-            return( false );
-        
         int index0 = value.indexOf( search );
         if( index0 == -1 )
-            return( false );
+            return( null );
         
         byte b0 = ATTR_QUOTE1;
         index0 += search.length(); 
@@ -659,10 +1342,22 @@ public class HtmlParser
                 !isWhiteSpace( b0 ) && isWhiteSpace( b1 ) )
                 break;
         }
-        String found = value.substring( index0, index1 );
+        return( new int[] { index0, index1 } );
+    }
+    
+    private boolean hasEncodingDirective( String value, String search )
+    {
+        if( encodingFound )
+            return( false );
+        
+        int[] range = findEncodingDirective( value, search );
+        if( range == null )
+            return( false );
+        
+        String found = value.substring( range[ 0 ], range[ 1 ] );
         String encoding = jc.getCharset( found ).name();
         encodingRestart = !encoding.equals( encodingText );
-        encodingText = encoding;
+        setEncodingText( encoding );
         return( true );
     }
     
@@ -811,21 +1506,78 @@ public class HtmlParser
         if( encodingFound )
             return( false );
         encodingFound = true;
+        if( bb != null )
+            encodingOffset = bb.position();
         if( !encodingRestart )
             return( false );
         alItems.clear();
+        syncCount = 0;
+        syncIssueBase = ilIssues.size();
+        aiResyncPos = null;
+        syncStop = Integer.MAX_VALUE;
         if( bb != null )
             bb.rewind();
         b = 0;
         return( true );
     }
     
+    // Records a point where the tokenizer is between a tag and text, returns
+    // true to stop: if it's also a point of the previous parse after the edit
+    // or of the next chunk (resync), or if it's at or past the stop position
+    private boolean addSync()
+    {
+        int pos = bb.position();
+        addSync( pos, alItems.size(), ilIssues.size() );
+        
+        if( aiResyncPos != null &&
+            pos >= resyncMin )
+        {
+            int index = Arrays.binarySearch( aiResyncPos, resyncFrom, resyncCount, pos - resyncDelta );
+            if( index >= 0 )
+            {
+                resyncIndex = index;
+                syncStopped = true;
+                return( true );
+            }
+        }
+        if( pos >= syncStop )
+        {
+            syncStopped = true;
+            return( true );
+        }
+        return( false );
+    }
+    
+    private void addSync( int pos, int items, int issues )
+    {
+        if( syncCount == aiSyncPos.length )
+        {
+            int size = Math.max( 64, syncCount * 2 );
+            aiSyncPos = Arrays.copyOf( aiSyncPos, size );
+            aiSyncItems = Arrays.copyOf( aiSyncItems, size );
+            aiSyncIssues = Arrays.copyOf( aiSyncIssues, size );
+        }
+        aiSyncPos[ syncCount ] = pos;
+        aiSyncItems[ syncCount ] = items;
+        aiSyncIssues[ syncCount ] = issues;
+        syncCount++;
+    }
+    
     private void parseReset()
     {
+        extracted = extracting;
         alItems.clear();
-        alIssues.clear();
-        encodingText = encodingTags;
+        partsUsed = 0;
+        ilIssues.clear();
+        inputLength = 0;
+        setEncodingText( encodingTags );
         encodingFound = false;
+        encodingOffset = -1;
+        doctypeRootElement = "html";
+        alTokens = null;
+        alTokenItems = null;
+        syncCount = 0;
+        syncIssueBase = 0;
         if( bb != null )
             bb.clear();
         b = 0;        
@@ -839,16 +1591,20 @@ public class HtmlParser
             return( -1 );
         if( s.charAt( 0 ) == TAG_OPEN )
             return( 0 );
-        char[] ach = s.toCharArray();
-        int cp = Character.codePointAt( ach, 0 );
+        int cp = s.codePointAt( 0 );
         if( cp > 0xFF ||
-            !Character.isLetter( cp ) ||
-            s.indexOf( ATTR_QUOTE1 ) != -1 ||
-            s.indexOf( ATTR_QUOTE2 ) != -1 ||
-            s.indexOf( ATTR_EQUAL ) != -1 ||
-            s.indexOf( TAG_OPEN ) != -1 ||
-            s.indexOf( TAG_CLOSE ) != -1 )   
+            !Character.isLetter( cp ) )
             return( -1 );
+        for( int i = 0; i < s.length(); i++ )
+        {
+            char c = s.charAt( i );
+            if( c == ATTR_QUOTE1 ||
+                c == ATTR_QUOTE2 ||
+                c == ATTR_EQUAL ||
+                c == TAG_OPEN ||
+                c == TAG_CLOSE )
+                return( -1 );
+        }
         return( 1 );
     }
     
@@ -861,19 +1617,182 @@ public class HtmlParser
         return( s.replace( '-', '_' ) );
     }
     
-    private void parse( boolean encodingOnly )
+    // A part from the arena, if any, or a new one
+    private HtmlPart newPart()
+    {
+        if( ahpArena == null )
+            return( new HtmlPart() );
+        if( partsUsed == ahpArena.length )
+            ahpArena = Arrays.copyOf( ahpArena, partsUsed * 2 );
+        HtmlPart hp = ahpArena[ partsUsed ];
+        if( hp == null )
+        {
+            hp = new HtmlPart();
+            ahpArena[ partsUsed ] = hp;
+        }
+        else
+        {
+            hp.type = null;
+            hp.value = null;
+            hp.offset = 0;
+            hp.level = 0;
+            hp.end = -1;
+        }
+        partsUsed++;
+        return( hp );
+    }
+    
+    // Adds a token, or in extraction mode only if it's asked for
+    private void addItem( HtmlPart hp )
+    {
+        if( !extracting )
+        {
+            alItems.add( hp );
+            return;
+        }
+        switch( hp.type )
+        {
+            case TEXT:
+                if( configExtractText )
+                    alItems.add( hp );
+                break;
+            case TAG_START:
+            case TAG_EMPTY:
+                extractElement = hmExtractElements != null &&
+                                 hmExtractElements.get( hp.value.toLowerCase( Locale.ENGLISH ) ) != null;
+                extractAttribute = false;
+                if( extractElement )
+                    alItems.add( hp );
+                break;
+            case ATTR_NAME:
+            case ATTR_SOLO:
+                extractAttribute = extractElement &&
+                                   ( hmExtractAttributes == null ||
+                                     hmExtractAttributes.get( hp.value.toLowerCase( Locale.ENGLISH ) ) != null );
+                if( extractAttribute )
+                    alItems.add( hp );
+                break;
+            case ATTR_VALUE:
+                if( extractAttribute )
+                    alItems.add( hp );
+                break;
+            default:
+                break;
+        }
+    }
+    
+    // Moves past a token's bytes like "grabString()" without decoding them
+    private void skipString( int pos1 )
+    {
+        bb.position( pos1 - 1 );
+        b = bb.get();
+    }
+    
+    // Need to clean up comments if embedded in script tag
+    private String cleanScriptComments( String s )
+    {
+        int commentStartIndex = s.indexOf( "<!--" );
+        if( commentStartIndex == -1 )
+            return( s );
+        char[] ach = s.toCharArray();
+        while( commentStartIndex != -1 )
+        {
+            int commentEndIndex = s.indexOf( "-->", commentStartIndex );
+            if( commentEndIndex == -1 )
+                break;
+            for( int i = commentStartIndex + 4; i < commentEndIndex; i++ )
+            {
+                if( ach[ i ] == '-' )
+                    ach[ i ] = '_';
+            }
+            commentStartIndex = s.indexOf( "<!--", commentEndIndex + 3 );
+        }
+        return( new String( ach ) );
+    }
+    
+    // Bytes at the position match the lower case name in any case
+    private boolean matchesIgnoreCase( int pos, int len, String name )
+    {
+        if( len != name.length() )
+            return( false );
+        for( int i = 0; i < len; i++ )
+        {
+            int c = bb.get( pos + i );
+            if( c >= 'A' && c <= 'Z' )
+                c += 'a' - 'A';
+            if( c != name.charAt( i ) )
+                return( false );
+        }
+        return( true );
+    }
+    
+    // Script or style body after its start tag: skips to an end tag
+    // "</script>" or "</style>" in any case (either ends either), then
+    // adds the body and the end tag.  Nothing is added without an end tag.
+    private void parseRawText()
+    {
+        int tpos0 = bb.position() + 1;
+        while( bb.position() < bb.limit() )
+        {
+            b = bb.get();
+            if( b != TAG_OPEN )
+                continue;
+            int tpos1 = bb.position();
+            b = bb.get();
+            if( b != TAG_SLASH )
+                continue;
+            b = bb.get();
+            int pos0 = bb.position();
+            boolean ret = findClose();
+            int pos1 = bb.position();
+            if( !ret )
+            {
+                ilIssues.add( "Invalid end tag", pos0 );
+                bb.position( pos0 );
+                continue;
+            }
+            
+            // The name starts with the byte read after the slash
+            HtmlPart thp = newPart();
+            if( matchesIgnoreCase( pos0 - 1, pos1 - pos0, "script" ) )
+                thp.type = HtmlPartType.TEXT_SCRIPT;
+            else if( matchesIgnoreCase( pos0 - 1, pos1 - pos0, "style" ) )
+                thp.type = HtmlPartType.TEXT_STYLE;
+            else
+                continue;
+            if( tpos1 - tpos0 > 0 && !extracting )
+            {
+                thp.value = grabString( tpos0, tpos1, decoderText );
+                if( thp.type == HtmlPartType.TEXT_SCRIPT )
+                    thp.value = cleanScriptComments( thp.value );
+            }
+            else
+                thp.value = "";
+            thp.offset = tpos0;
+            addItem( thp );
+            HtmlPart ethp = newPart();
+            ethp.type = HtmlPartType.TAG_END;
+            ethp.value = grabString( pos0, pos1, decoderTags );
+            ethp.offset = pos0;
+            addItem( ethp );
+            return;
+        }
+    }
+    
+    private void parse( boolean encodingOnly )
     {
         int tpos0 = b + 1;
-        HtmlPart thp = new HtmlPart();
-        boolean ignoreScriptStyle = false;
+        HtmlPart thp = newPart();
         boolean collectingText = false;
         String prevTag = "";
         while( bb.position() < bb.limit() )
         {
             if( b == TAG_CLOSE &&
-                !ignoreScriptStyle &&
                 !collectingText )
             {
+                if( ( configIncremental || configPool != null ) &&
+                    addSync() )
+                    return;
                 tpos0 = bb.position() + 1;
                 collectingText = true;
             }
@@ -881,41 +1800,42 @@ public class HtmlParser
             if( b == TAG_OPEN )
             {
                 int tpos1 = bb.position();
-                thp = new HtmlPart();
+                thp = newPart();
                 thp.type = HtmlPartType.TEXT;
-                if( tpos1 - tpos0 > 0 )
-                    thp.value = grabString( tpos0, tpos1, encodingText );
+                if( tpos1 - tpos0 > 0 &&
+                    ( !extracting || configExtractText ) )
+                    thp.value = grabString( tpos0, tpos1, decoderText );
                 else
-                    thp.value = "";
-                thp.offset = tpos0;
-                if( !ignoreScriptStyle )
                 {
-                    thp.value = translateSpecialChars( thp.value );
-                    alItems.add( thp );
-                    collectingText = false;
+                    if( tpos1 - tpos0 > 0 )
+                        skipString( tpos1 );
+                    thp.value = "";
                 }
+                thp.offset = tpos0;
+                thp.value = translateSpecialChars( thp.value );
+                addItem( thp );
+                collectingText = false;
                 b = bb.get();
-                if( b == TAG_EXCLAMATION &&
-                    !ignoreScriptStyle )
+                if( b == TAG_EXCLAMATION )
                 {
                     b = bb.get();
                     if( b == TAG_OPEN_BRACKET )
                     {
                         b = bb.get();
-                        HtmlPart d2hp = new HtmlPart();
+                        HtmlPart d2hp = newPart();
                         d2hp.type = HtmlPartType.TAG_DECL2;
                         int pos0 = bb.position();
                         boolean ret = findCloseBracketTwiceAndClose();
                         int pos1 = bb.position() - 2;
                         if( ret )
                         {
-                            d2hp.value = grabString( pos0, pos1, encodingTags );
+                            d2hp.value = grabString( pos0, pos1, decoderTags );
                             d2hp.offset = pos0;
-                            alItems.add( d2hp );
+                            addItem( d2hp );
                         }
                         else
                         {
-                            alIssues.add( "Invalid xml include declaration at " + pos0 );
+                            ilIssues.add( "Invalid xml include declaration", pos0 );
                             bb.position( pos0 );
                             continue;
                         }
@@ -926,43 +1846,43 @@ public class HtmlParser
                         if( b == TAG_DASH )
                         {
                             b = bb.get();
-                            HtmlPart chp = new HtmlPart();
+                            HtmlPart chp = newPart();
                             chp.type = HtmlPartType.TAG_COMMENT;
                             int pos0 = bb.position();
                             boolean ret = findDashAndDashAndClose();
                             int pos1 = bb.position() - 2;
                             if( ret )
                             {
-                                String comment = grabString( pos0, pos1, encodingText );
+                                String comment = grabString( pos0, pos1, decoderText );
                                 chp.value = cleanComment( comment );
                                 chp.offset = pos0;
-                                alItems.add( chp );
+                                addItem( chp );
                                 b = bb.get();
                                 b = bb.get();
                             }
                             else
                             {
-                                alIssues.add( "Invalid xml comment at " + pos0 );
+                                ilIssues.add( "Invalid xml comment", pos0 );
                                 bb.position( pos0 );
                                 continue;
                             }
                         }
                         else
                         {
-                            alIssues.add( "Invalid xml comment at " + bb.position() );
+                            ilIssues.add( "Invalid xml comment", bb.position() );
                             continue;
                         }
                     }
                     else
                     {
-                        HtmlPart dhp = new HtmlPart();
+                        HtmlPart dhp = newPart();
                         dhp.type = HtmlPartType.TAG_DECL;
                         int pos0 = bb.position();
                         boolean ret = findClose();
                         int pos1 = bb.position();
                         if( ret )
                         {
-                            dhp.value = grabString( pos0, pos1, encodingTags );
+                            dhp.value = grabString( pos0, pos1, decoderTags );
                             boolean validXmlDecl = false;
                             for( int i = 0; i < XML_DECLS.length; i++ )
                             {
@@ -975,28 +1895,27 @@ public class HtmlParser
                             if( !validXmlDecl )
                                 dhp.type = HtmlPartType.TAG_COMMENT;
                             dhp.offset = pos0;
-                            alItems.add( dhp );
+                            addItem( dhp );
                         }
                         else
                         {
-                            alIssues.add( "Invalid xml declaration at " + pos0 );
+                            ilIssues.add( "Invalid xml declaration", pos0 );
                             bb.position( pos0 );
                             continue;
                         }
                     }
                 }
-                else if( b == TAG_QUESTION &&
-                         !ignoreScriptStyle )
+                else if( b == TAG_QUESTION )
                 {
                     b = bb.get();
-                    HtmlPart pihp = new HtmlPart();
+                    HtmlPart pihp = newPart();
                     pihp.type = HtmlPartType.TAG_PI;
                     int pos0 = bb.position();
                     boolean ret = findQuestionAndClose();
                     int pos1 = bb.position() - 1;
                     if( ret )
                     {
-                        pihp.value = grabString( pos0, pos1, encodingTags );
+                        pihp.value = grabString( pos0, pos1, decoderTags );
                         pihp.offset = pos0;
                         // Check for encoding directive
                         if( hasEncodingDirective( pihp.value, " encoding=" ) )
@@ -1008,11 +1927,11 @@ public class HtmlParser
                             if( parseRestart() )
                                 continue;
                         }
-                        alItems.add( pihp );
+                        addItem( pihp );
                     }
                     else
                     {
-                        alIssues.add( "Invalid xml processing instruction at " + pos0 );
+                        ilIssues.add( "Invalid xml processing instruction", pos0 );
                         bb.position( pos0 );
                         continue;
                     }
@@ -1020,116 +1939,81 @@ public class HtmlParser
                 else if( b == TAG_SLASH )
                 {
                     b = bb.get();
-                    HtmlPart ethp = new HtmlPart();
+                    HtmlPart ethp = newPart();
                     ethp.type = HtmlPartType.TAG_END;
                     int pos0 = bb.position();
                     boolean ret = findClose();
                     int pos1 = bb.position();
                     if( ret )
                     {
-                        ethp.value = grabString( pos0, pos1, encodingTags );
-                        int nameValidity = xmlNameValidity( ethp.value );
+                        ethp.value = grabName( pos0, pos1 );
                         if( nameValidity != 1 )
                             ethp.value = "InvalidXmlName";
-                        if( ignoreScriptStyle )
-                        {
-                            if( ethp.value.toLowerCase( Locale.ENGLISH ).equals( "script" ) ||
-                                ethp.value.toLowerCase( Locale.ENGLISH ).equals( "style" ) )
-                            {
-                                if( ethp.value.toLowerCase( Locale.ENGLISH ).equals( "script" ) )
-                                {
-                                    thp.type = HtmlPartType.TEXT_SCRIPT;
-                                    
-                                    // Need to clean up comments if embedded in script tag
-                                    int commentStartIndex = 0;
-                                    while( commentStartIndex != -1 )
-                                    {
-                                        commentStartIndex = thp.value.indexOf( "<!--", commentStartIndex );
-                                        if( commentStartIndex == -1 )
-                                            break;
-                                        int commentEndIndex = thp.value.indexOf( "-->", commentStartIndex );
-                                        if( commentEndIndex == -1 )
-                                            break;
-                                        String comment = thp.value.substring( commentStartIndex + 4,
-                                                                                commentEndIndex );
-                                        thp.value = thp.value.replace( comment, cleanComment( comment ) );
-                                        commentStartIndex = commentEndIndex + 3;
-                                    }
-                                }
-                                else
-                                    thp.type = HtmlPartType.TEXT_STYLE;
-                                alItems.add( thp );
-                                ignoreScriptStyle = false;
-                            }
-                            else
-                            {
-                                continue;
-                            }
-                        }
                         ethp.offset = pos0;
-                        alItems.add( ethp );
+                        addItem( ethp );
                     }
                     else
                     {
-                        alIssues.add( "Invalid end tag at " + pos0 );
+                        ilIssues.add( "Invalid end tag", pos0 );
                         bb.position( pos0 );
                         continue;
                     }
                 }
                 else
                 {
-                    if( ignoreScriptStyle )
-                        continue;
-                    HtmlPart sthp = new HtmlPart();
+                    HtmlPart sthp = newPart();
                     sthp.type = HtmlPartType.TAG_START;
                     int pos0 = bb.position();
                     boolean ret = findSpaceOrSlashOrClose();
                     int pos1 = bb.position();
                     if( ret )
                     {
-                        sthp.value = grabString( pos0, pos1, encodingTags );
+                        sthp.value = grabName( pos0, pos1 );
                         String invalidXmlName = "";
-                        int nameValidity = xmlNameValidity( sthp.value );
+                        String lower = nameLower;
                         if( nameValidity != 1 )
                         {
                             invalidXmlName = sthp.value;
                             sthp.value = "InvalidXmlName";
+                            lower = "invalidxmlname";
                         }
-                        if( mVoidElements.get( sthp.value.toLowerCase( Locale.ENGLISH ) ) != null )
+                        int flags = elementFlags( lower );
+                        if( ( flags & ELEM_VOID ) != 0 )
                             sthp.type = HtmlPartType.TAG_EMPTY;
-                        prevTag = sthp.value.toLowerCase( Locale.ENGLISH );
+                        prevTag = lower;
                         sthp.offset = pos0;
                         if( isWhiteSpace( b ) )
                         {
                             ret = findNonSpace();
                             if( ret )
                             {
-                                alItems.add( sthp );
+                                addItem( sthp );
                             }
                             else
                             {
-                                alIssues.add( "Invalid start tag at " + pos0 );
+                                ilIssues.add( "Invalid start tag", pos0 );
                                 bb.position( pos0 );
                                 continue;
                             }
                         }
                         else
                         {
-                            alItems.add( sthp );
+                            addItem( sthp );
                             if( invalidXmlName.length() > 0 )
                             {
                                 String value = invalidXmlName;
                                 value = translateSpecialChars( value );
-                                HtmlPart anhp = new HtmlPart();
-                                anhp.value = "InvalidXmlName_" + pos0 + "_" + pos1;
+                                HtmlPart anhp = newPart();
+                                anhp.value = invalidXmlName( pos0, pos1 );
+                                anhp.end = pos1;
                                 anhp.type = HtmlPartType.ATTR_NAME;
                                 anhp.offset = pos0;
-                                alItems.add( anhp );
-                                HtmlPart avhp = new HtmlPart();
+                                addItem( anhp );
+                                HtmlPart avhp = newPart();
                                 avhp.value = value;
                                 avhp.type = HtmlPartType.ATTR_VALUE;
                                 avhp.offset = pos0;
-                                alItems.add( avhp );
+                                addItem( avhp );
                             }
                         }
                         if( b == TAG_SLASH )
@@ -1140,15 +2024,14 @@ public class HtmlParser
                         boolean continueOuterLoop = false;
                         while( b != TAG_CLOSE )
                         {
-                            HtmlPart anhp = new HtmlPart();
+                            HtmlPart anhp = newPart();
                             anhp.type = HtmlPartType.ATTR_NAME;
                             pos0 = bb.position();
                             ret = findSpaceOrEqualOrSlashOrClose();
                             pos1 = bb.position();
                             if( ret )
                             {
-                                anhp.value = grabString( pos0, pos1, encodingTags );
-                                nameValidity = xmlNameValidity( anhp.value );
+                                anhp.value = grabName( pos0, pos1 );
                                 if( nameValidity == 0 )
                                 {
                                     // Got unexpected TAG_OPEN
@@ -1164,15 +2047,16 @@ public class HtmlParser
                                     value = translateSpecialChars( value );
                                     value = value.replace( "\"", "_" );
                                     value = value.replace( "'", "_" );
-                                    anhp.value = "InvalidXmlName_" + pos0 + "_" + pos1;
+                                    anhp.value = invalidXmlName( pos0, pos1 );
+                                    anhp.end = pos1;
                                     anhp.type = HtmlPartType.ATTR_NAME;
                                     anhp.offset = pos0;
-                                    alItems.add( anhp );
-                                    HtmlPart avhp2 = new HtmlPart();
+                                    addItem( anhp );
+                                    HtmlPart avhp2 = newPart();
                                     avhp2.value = value;
                                     avhp2.type = HtmlPartType.ATTR_VALUE;
                                     avhp2.offset = pos0;
-                                    alItems.add( avhp2 );
+                                    addItem( avhp2 );
                                     if( b == TAG_SLASH )
                                     {
                                         sthp.type = HtmlPartType.TAG_EMPTY;
@@ -1192,7 +2076,7 @@ public class HtmlParser
                                     }
                                     else
                                     {
-                                        alIssues.add( "Invalid attribute name at " + pos0 );
+                                        ilIssues.add( "Invalid attribute name", pos0 );
                                         bb.position( pos0 );
                                         break;
                                     }
@@ -1203,18 +2087,18 @@ public class HtmlParser
                                     ret = findNonSpace();
                                     if( ret )
                                     {
-                                        alItems.add( anhp );
+                                        addItem( anhp );
                                     }
                                     else
                                     {
-                                        alIssues.add( "Invalid attribute name at " + pos0 );
+                                        ilIssues.add( "Invalid attribute name", pos0 );
                                         bb.position( pos0 );
                                         break;
                                     }
                                 }
                                 else
                                 {
-                                    alItems.add( anhp );
+                                    addItem( anhp );
                                 }
                                 if( b == ATTR_EQUAL )
                                 {
@@ -1228,17 +2112,17 @@ public class HtmlParser
                                         }
                                         if( b == TAG_CLOSE )
                                         {
-                                            HtmlPart avhp = new HtmlPart();
+                                            HtmlPart avhp = newPart();
                                             avhp.type = HtmlPartType.ATTR_VALUE;
                                             avhp.value = "";
                                             avhp.offset = bb.position();
-                                            alItems.add( avhp );
+                                            addItem( avhp );
                                             continue;
                                         }
                                     }
                                     else
                                     {
-                                        alIssues.add( "Invalid attribute value at " + pos0 );
+                                        ilIssues.add( "Invalid attribute value", pos0 );
                                         bb.position( pos0 );
                                         break; 
                                     }
@@ -1251,11 +2135,11 @@ public class HtmlParser
                             }
                             else
                             {
-                                alIssues.add( "Invalid attribute name at " + pos0 );
+                                ilIssues.add( "Invalid attribute name", pos0 );
                                 bb.position( pos0 );
                                 break;
                             }
-                            HtmlPart avhp = new HtmlPart();
+                            HtmlPart avhp = newPart();
                             avhp.type = HtmlPartType.ATTR_VALUE;
                             pos0 = bb.position();
                             byte quote = 0;
@@ -1282,10 +2166,16 @@ public class HtmlParser
                                         bb.get();
                                     }
                                 }
-                                avhp.value = grabString( pos0, pos1, encodingText );
+                                if( !extracting || extractAttribute || prevTag.equals( "meta" ) )
+                                    avhp.value = grabString( pos0, pos1, decoderText );
+                                else
+                                {
+                                    skipString( pos1 );
+                                    avhp.value = "";
+                                }
                                 avhp.offset = pos0;
                                 // Check for encoding directive
-                                if( prevTag.toLowerCase( Locale.ENGLISH ).equals( "meta" ) &&
+                                if( prevTag.equals( "meta" ) &&
                                     hasEncodingDirective( avhp.value, " charset=" ) )
                                 {
                                     if( encodingOnly )
@@ -1299,13 +2189,13 @@ public class HtmlParser
                                     }
                                 }
                                 avhp.value = translateSpecialChars( avhp.value );
-                                alItems.add( avhp );
+                                addItem( avhp );
                                 if( b == TAG_CLOSE )
                                     continue;
                             }
                             else
                             {
-                                alIssues.add( "Invalid attribute value at " + pos0 );
+                                ilIssues.add( "Invalid attribute value", pos0 );
                                 bb.position( pos0 );
                                 break;
                             }
@@ -1321,23 +2211,19 @@ public class HtmlParser
                             }
                             else
                             {
-                                alIssues.add( "Invalid attribute name at " + pos0 );
+                                ilIssues.add( "Invalid attribute name", pos0 );
                                 bb.position( pos0 );
                                 break;
                             }
                         }
                         if( continueOuterLoop )
                             continue; // Restart parse with new text encoding
-                        if( sthp.value.toLowerCase( Locale.ENGLISH ).equals( "script" ) ||
-                            sthp.value.toLowerCase( Locale.ENGLISH ).equals( "style" ) )
-                        {
-                            ignoreScriptStyle = true;
-                            tpos0 = bb.position() + 1;
-                        }
+                        if( ( flags & ELEM_RAW_TEXT ) != 0 )
+                            parseRawText();
                     }
                     else
                     {
-                        alIssues.add( "Invalid start or empty tag at " + pos0 );
+                        ilIssues.add( "Invalid start or empty tag", pos0 );
                         bb.position( pos0 );
                         continue;
                     }
@@ -1379,12 +2265,275 @@ public class HtmlParser
     }
     */
     
+    // Stack of open elements with the number open of each (lower case)
+    // name, so whether a name is open anywhere is known without searching
+    private static class TagStack< T >
+    {
+        private HashMap< String, Integer > hmIds = new HashMap< String, Integer >();
+        private int[] aiOpen = new int[ 16 ];
+        private Object[] aoItems = new Object[ 16 ];
+        private String[] asNames = new String[ 16 ];
+        private int[] aiIds = new int[ 16 ];
+        private int size = 0;
+        
+        public void push( T item, String name )
+        {
+            Integer id = hmIds.get( name );
+            if( id == null )
+            {
+                id = hmIds.size();
+                hmIds.put( name, id );
+                if( id == aiOpen.length )
+                    aiOpen = Arrays.copyOf( aiOpen, id * 2 );
+            }
+            if( size == aoItems.length )
+            {
+                aoItems = Arrays.copyOf( aoItems, size * 2 );
+                asNames = Arrays.copyOf( asNames, size * 2 );
+                aiIds = Arrays.copyOf( aiIds, size * 2 );
+            }
+            aoItems[ size ] = item;
+            asNames[ size ] = name;
+            aiIds[ size ] = id;
+            aiOpen[ id ]++;
+            size++;
+        }
+        
+        @SuppressWarnings( "unchecked" )
+        public T peek()
+        {
+            return( ( T )aoItems[ size - 1 ] );
+        }
+        
+        public String peekName()
+        {
+            return( asNames[ size - 1 ] );
+        }
+        
+        public String nameAt( int index )
+        {
+            return( asNames[ index ] );
+        }
+        
+        public T pop()
+        {
+            T item = peek();
+            size--;
+            aiOpen[ aiIds[ size ] ]--;
+            aoItems[ size ] = null;
+            return( item );
+        }
+        
+        public boolean isOpen( String name )
+        {
+            Integer id = hmIds.get( name );
+            return( id != null && aiOpen[ id ] > 0 );
+        }
+        
+        public int size()
+        {
+            return( size );
+        }
+        
+        public void clear()
+        {
+            while( size > 0 )
+                pop();
+        }
+    };
+    
+    // Attributes of an element, names and values kept inline.  Looked up
+    // by a linear search while small, through a hash past ATTR_TABLE_HASH.
+    // Read only as a map.
+    private static class AttrTable extends AbstractMap< String, String >
+    {
+        private static final int ATTR_TABLE_HASH = 8;
+        private String[] asNames = new String[ ATTR_TABLE_HASH ];
+        private String[] asValues = new String[ ATTR_TABLE_HASH ];
+        private int size = 0;
+        private HashMap< String, Integer > hmIndexes = null;
+        
+        public int indexOf( Object name )
+        {
+            if( hmIndexes != null )
+            {
+                Integer index = hmIndexes.get( name );
+                return( index == null ? -1 : index );
+            }
+            for( int i = 0; i < size; i++ )
+            {
+                if( asNames[ i ].equals( name ) )
+                    return( i );
+            }
+            return( -1 );
+        }
+        
+        // Returns false, adding nothing, if the name is already there
+        public boolean add( String name, String value )
+        {
+            if( indexOf( name ) != -1 )
+                return( false );
+            if( size == asNames.length )
+            {
+                asNames = Arrays.copyOf( asNames, size * 2 );
+                asValues = Arrays.copyOf( asValues, size * 2 );
+            }
+            asNames[ size ] = name;
+            asValues[ size ] = value;
+            if( hmIndexes != null )
+                hmIndexes.put( name, size );
+            else if( size == ATTR_TABLE_HASH )
+            {
+                hmIndexes = new HashMap< String, Integer >();
+                for( int i = 0; i <= size; i++ )
+                    hmIndexes.put( asNames[ i ], i );
+            }
+            size++;
+            return( true );
+        }
+        
+        public void reset()
+        {
+            Arrays.fill( asNames, 0, size, null );
+            Arrays.fill( asValues, 0, size, null );
+            size = 0;
+            hmIndexes = null;
+        }
+        
+        @Override
+        public String get( Object name )
+        {
+            int index = indexOf( name );
+            return( index == -1 ? null : asValues[ index ] );
+        }
+        
+        @Override
+        public boolean containsKey( Object name )
+        {
+            return( indexOf( name ) != -1 );
+        }
+        
+        @Override
+        public int size()
+        {
+            return( size );
+        }
+        
+        @Override
+        public Set< Map.Entry< String, String > > entrySet()
+        {
+            return( new AbstractSet< Map.Entry< String, String > >()
+            {
+                @Override
+                public Iterator< Map.Entry< String, String > > iterator()
+                {
+                    return( new Iterator< Map.Entry< String, String > >()
+                    {
+                        private int index = 0;
+                        
+                        public boolean hasNext()
+                        {
+                            return( index < size );
+                        }
+                        
+                        public Map.Entry< String, String > next()
+                        {
+                            if( index >= size )
+                                throw new NoSuchElementException();
+                            index++;
+                            return( new AbstractMap.SimpleImmutableEntry< String, String >( asNames[ index - 1 ], asValues[ index - 1 ] ) );
+                        }
+                        
+                        public void remove()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    } );
+                }
+                
+                @Override
+                public int size()
+                {
+                    return( size );
+                }
+            } );
+        }
+    };
+    
+    // Applies an implied end tag rule before a start tag, adding the end tags
+    private void closeImplied( ImpliedEnd ie, TagStack< HtmlPart > tsTags, ArrayList< HtmlPart > alOut )
+    {
+        boolean open = false;
+        for( int i = 0; i < ie.asTargets.length && !open; i++ )
+            open = tsTags.isOpen( ie.asTargets[ i ] );
+        if( !open )
+            return;
+        int index = -1;
+        for( int i = tsTags.size() - 1; i >= 0; i-- )
+        {
+            String name = tsTags.nameAt( i );
+            if( ie.hmTargets.get( name ) != null )
+            {
+                index = i;
+                break;
+            }
+            if( ie.topOnly || ie.hmBoundaries.get( name ) != null )
+                break;
+        }
+        while( index != -1 && tsTags.size() > index )
+        {
+            HtmlPart hp = newPart();
+            hp.value = new String( tsTags.pop().value );
+            hp.type = HtmlPartType.TAG_END;
+            hp.offset = -1;
+            alOut.add( hp );
+            
+            if( debugValidate )
+                System.out.println( "implied end " + hp.value );
+        }
+    }
+    
+    // Inserts the end tags HTML 5 implies (see "configImpliedEndTags()"),
+    // "validate()" then balances the rest
+    private void implyEndTags()
+    {
+        ArrayList< HtmlPart > alOut = new ArrayList< HtmlPart >( alItems.size() + 16 );
+        TagStack< HtmlPart > tsTags = new TagStack< HtmlPart >();
+        for( int i = 0; i < alItems.size(); i++ )
+        {
+            HtmlPart hp = alItems.get( i );
+            if( hp.type == HtmlPartType.TAG_START ||
+                hp.type == HtmlPartType.TAG_EMPTY )
+            {
+                String name = hp.value.toLowerCase( Locale.ENGLISH );
+                ImpliedEnd[] aie = hmImpliedEnds.get( name );
+                for( int j = 0; aie != null && j < aie.length; j++ )
+                    closeImplied( aie[ j ], tsTags, alOut );
+                if( hp.type == HtmlPartType.TAG_START )
+                    tsTags.push( hp, name );
+            }
+            else if( hp.type == HtmlPartType.TAG_END )
+            {
+                // Same as "validate()": an end tag closes down to its start, if open
+                String name = hp.value.toLowerCase( Locale.ENGLISH );
+                if( tsTags.isOpen( name ) )
+                {
+                    while( !tsTags.peekName().equals( name ) )
+                        tsTags.pop();
+                    tsTags.pop();
+                }
+            }
+            alOut.add( hp );
+        }
+        alItems = alOut;
+    }
+    
     private void validate()
     {
         //dumpValidate();
         
-        HashMap< String, String > hmCurrentAttrs = new HashMap< String, String >();
-        LinkedList< HtmlPart > llTagStack = new LinkedList< HtmlPart >();
+        AttrTable atCurrentAttrs = new AttrTable();
+        TagStack< HtmlPart > tsTags = new TagStack< HtmlPart >();
         int level = 1;
         int i = 0;
         int j = 0;
@@ -1405,7 +2554,7 @@ public class HtmlParser
                     else
                     {
                         // insert "html" start tag
-                        HtmlPart hp2 = new HtmlPart();
+                        HtmlPart hp2 = newPart();
                         hp2.value = doctypeRootElement; // "html"
                         hp2.type = HtmlPartType.TAG_START;
                         hp2.offset = -1;
@@ -1424,35 +2573,39 @@ public class HtmlParser
                     if( hp.value.toLowerCase( Locale.ENGLISH ).equals( doctypeRootElement ) ) // "html"
                     {
                         hp.value = "div";
-                        HtmlPart hp2 = new HtmlPart();
+                        HtmlPart hp2 = newPart();
                         hp2.value = "InvalidHtmlTag";
                         hp2.type = HtmlPartType.ATTR_NAME;
                         hp2.offset = -1;
                         alItems.add( i + 1, hp2 );
-                        HtmlPart hp3 = new HtmlPart();
+                        HtmlPart hp3 = newPart();
                         hp3.value = doctypeRootElement;
                         hp3.type = HtmlPartType.ATTR_VALUE;
                         hp3.offset = -1;
                         alItems.add( i + 2, hp3 );
                     }
                 }
-                hmCurrentAttrs.clear();                
+                atCurrentAttrs.reset();                
 
                 // check if there's a "proper" matching end
+                String name = hp.value.toLowerCase( Locale.ENGLISH );
                 int countStart = 1;
                 int countEnd = 0;
                 int insertIndex = -1;
                 for( j = i + 1; j < alItems.size(); j++ )
                 {
                     HtmlPart hp2 = alItems.get( j );
-                    if( hp2.value.toLowerCase( Locale.ENGLISH ).equals( hp.value.toLowerCase( Locale.ENGLISH ) ) &&
+                    if( hp2.type != HtmlPartType.TAG_START &&
+                        hp2.type != HtmlPartType.TAG_END )
+                        continue;
+                    if( hp2.value.toLowerCase( Locale.ENGLISH ).equals( name ) &&
                         hp2.type == HtmlPartType.TAG_START )
                     {
                         if( insertIndex == -1 )
                             insertIndex = j;
                         countStart++;
                     }
-                    if( hp2.value.toLowerCase( Locale.ENGLISH ).equals( hp.value.toLowerCase( Locale.ENGLISH ) ) &&
+                    if( hp2.value.toLowerCase( Locale.ENGLISH ).equals( name ) &&
                         hp2.type == HtmlPartType.TAG_END )
                     {
                         if( insertIndex == -1 )
@@ -1465,7 +2618,7 @@ public class HtmlParser
                     if( countStart > countEnd + 1 )
                     {
                         // insert end tag ("level" assigned later)
-                        HtmlPart hp2 = new HtmlPart();
+                        HtmlPart hp2 = newPart();
                         hp2.value = new String( hp.value );
                         hp2.type = HtmlPartType.TAG_END;
                         hp2.offset = -1;
@@ -1477,20 +2630,20 @@ public class HtmlParser
                 }
                 
                 hp.level = level++;
-                llTagStack.push( hp );
+                tsTags.push( hp, name );
                 
                 if( debugValidate )
                     System.out.println( indent( hp.level ) + " start (" + i + ") " + hp.value + " " + hp.type + " " + hp.level );
             }
             else if( hp.type == HtmlPartType.TAG_EMPTY )
             {                
-                hmCurrentAttrs.clear();
+                atCurrentAttrs.reset();
                 
                 hp.level = level;
             }
             else if( hp.type == HtmlPartType.TAG_END )
             {
-                if( llTagStack.size() == 0 )
+                if( tsTags.size() == 0 )
                 {
                     // remove end tag
                     alItems.remove( i );
@@ -1517,13 +2670,15 @@ public class HtmlParser
                         }
                     }
                     
-                    HtmlPart hp2 = llTagStack.pop();
+                    HtmlPart hp2 = tsTags.peek();
+                    String name = hp.value.toLowerCase( Locale.ENGLISH );
                     
                     if( debugValidate )
                         System.out.println( "pop " + hp2.value + " " + hp2.type + " " + hp2.level );
                     
-                    if( hp2.value.toLowerCase( Locale.ENGLISH ).equals( hp.value.toLowerCase( Locale.ENGLISH ) ) )
+                    if( tsTags.peekName().equals( name ) )
                     {
+                        tsTags.pop();
                         hp.level = --level;
                         hp.value = new String( hp2.value );
                         
@@ -1534,24 +2689,11 @@ public class HtmlParser
                     {
                         // Check to see if current end tag has a match,
                         // either remove current or add missing
-                        boolean found = false;
-                        LinkedList< HtmlPart > llTagStack2 = new LinkedList< HtmlPart >();
-                        while( llTagStack.size() > 0 )
-                        {
-                            HtmlPart hp3 = llTagStack.pop();
-                            llTagStack2.push( hp3 );
-                            if( hp3.value.toLowerCase( Locale.ENGLISH ).equals( hp.value.toLowerCase( Locale.ENGLISH ) ) )
-                            {
-                                found = true;
-                                break;
-                            }
-                        }
-                        while( llTagStack2.size() > 0 )
-                            llTagStack.push( llTagStack2.pop() );
+                        boolean found = tsTags.isOpen( name );
                         if( found )
                         {                        
                             // insert end tag
-                            HtmlPart hp3 = new HtmlPart();
+                            HtmlPart hp3 = newPart();
                             hp3.value = new String( hp2.value );
                             hp3.type = HtmlPartType.TAG_END;
                             hp3.offset = -1;
@@ -1561,13 +2703,10 @@ public class HtmlParser
                             if( debugValidate )
                                 System.out.println( "inserted end (" + i + ") " + hp3.value + " " + hp3.type + " " + hp3.level );
                             
-                            llTagStack.push( hp2 );
                             continue;
                         }
                         else
                         {
-                            llTagStack.push( hp2 );
-                            
                             // remove end tag
                             alItems.remove( i );
                             
@@ -1583,17 +2722,15 @@ public class HtmlParser
                 if( hp.value.toLowerCase( Locale.ENGLISH ).equals( doctypeRootElement ) )
                 {
                     i++;
-                    while( i < alItems.size() )
-                        alItems.remove( i );
-                    llTagStack.clear();
+                    alItems.subList( i, alItems.size() ).clear();
+                    tsTags.clear();
                     break;
                 }
             }
             else if( hp.type == HtmlPartType.ATTR_NAME )
             {
                 // XML does not allow duplicate attributes
-                String name = hmCurrentAttrs.get( hp.value );
-                if( name != null )
+                if( !atCurrentAttrs.add( hp.value, null ) )
                 {
                     // remove attribute name
                     alItems.remove( i );
@@ -1605,16 +2742,11 @@ public class HtmlParser
                     
                     continue;
                 }
-                else
-                {
-                    hmCurrentAttrs.put( hp.value, hp.value );
-                }
             }
             else if( hp.type == HtmlPartType.ATTR_SOLO )
             {
                 // XML does not allow duplicate attributes
-                String name = hmCurrentAttrs.get( hp.value );
-                if( name != null )
+                if( !atCurrentAttrs.add( hp.value, null ) )
                 {
                     // remove attribute name
                     alItems.remove( i );
@@ -1624,19 +2756,15 @@ public class HtmlParser
                     
                     continue;
                 }
-                else
-                {
-                    hmCurrentAttrs.put( hp.value, hp.value );
-                }
             }
             i++;
         }
         
         // add end tags for any remaining start tags
-        while( llTagStack.size() > 0 )
+        while( tsTags.size() > 0 )
         {
-            HtmlPart hp4 = llTagStack.pop();
-            HtmlPart hp5 = new HtmlPart();
+            HtmlPart hp4 = tsTags.pop();
+            HtmlPart hp5 = newPart();
             hp5.value = new String( hp4.value );
             hp5.type = HtmlPartType.TAG_END;
             hp5.offset = -1;
@@ -1647,167 +2775,2190 @@ public class HtmlParser
         }
     }
     
-    private void process( boolean encodingOnly )
+    // Keeps the tokens before validation changes them (see "parseDataEdit()")
+    private void keepTokens()
     {
-        try
-        {
-            // record BOM if it exists
-            if( bb.limit() >= 3 )
-            {
-                byte[] bytes = new byte[ 3 ];
-                bb.get( bytes, 0, 3 );
-                if( ( bytes[ 0 ] & 0xFF ) == 0xEF &&
-                    ( bytes[ 1 ] & 0xFF ) == 0xBB &&
-                    ( bytes[ 2 ] & 0xFF ) == 0xBF )
-                    b = 3;
-                else
-                    bb.rewind();                    
-            }
-            
-            // process
-            parse( encodingOnly );
-            if( configValidate || !encodingOnly )
-                validate();
-        }
-        catch( Exception ex )
-        {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter( sw );
-            ex.printStackTrace( pw );
-            alIssues.add( sw.toString() );
-        }
+        alTokens = alItems;
+        alTokenItems = null;
+        tokensValidated = configValidate;
+        tokensImplied = configImpliedEndTags;
+        if( !configValidate )
+            return;
+        alItems = new ArrayList< HtmlPart >( alTokens.size() + 16 );
+        for( int i = 0; i < alTokens.size(); i++ )
+            alItems.add( copyPart( alTokens.get( i ) ) );
+        alTokenItems = new ArrayList< HtmlPart >( alItems );
     }
     
-    private void parseFile( String file, boolean encodingOnly )
+    private HtmlPart copyPart( HtmlPart hp )
     {
-        parseReset();
+        HtmlPart hp2 = newPart();
+        hp2.type = hp.type;
+        hp2.value = hp.value;
+        hp2.offset = hp.offset;
+        hp2.level = hp.level;
+        hp2.end = hp.end;
+        return( hp2 );
+    }
+    
+    private static final int VALIDATE_CHUNK = 1 << 14; // tokens per chunk
+    
+    // Growable int array
+    private static class IntList
+    {
+        private int[] ai = new int[ 8 ];
+        private int size = 0;
         
-        File f = new File( file );
-        if( !f.exists() )
+        public void add( int i )
         {
-            alIssues.add( "File does not exist" );
-            return;
+            if( size == ai.length )
+                ai = Arrays.copyOf( ai, size * 2 );
+            ai[ size++ ] = i;
         }
-        if( f.length() == 0 )
+        
+        public void addAll( IntList il )
         {
-            alIssues.add( "File size is zero" );
-            return;
+            if( size + il.size > ai.length )
+                ai = Arrays.copyOf( ai, Math.max( size + il.size, size * 2 ) );
+            System.arraycopy( il.ai, 0, ai, size, il.size );
+            size += il.size;
         }
-        if( f.length() > Integer.MAX_VALUE )
+    };
+    
+    // Summary of a range of tokens for "validateChunks()": the positions of
+    // the start (i) and end (~i) tags of each lower case name, in order.
+    // Summaries of neighbouring ranges combine by appending.
+    private static class TagNames extends RecursiveTask< HashMap< String, IntList > >
+    {
+        private static final long serialVersionUID = 1L;
+        private HtmlPart[] parts;
+        private String[] lower;
+        private int from;
+        private int to;
+        
+        public TagNames( HtmlPart[] parts, String[] lower, int from, int to )
         {
-            alIssues.add( "File size is greater than " + Integer.MAX_VALUE );
-            return;
+            this.parts = parts;
+            this.lower = lower;
+            this.from = from;
+            this.to = to;
         }
-        int fileSize = ( int )f.length();
         
-        bb = ByteBuffer.allocate( fileSize );
-        FileInputStream fis = null;
-        try
+        protected HashMap< String, IntList > compute()
         {
-            fis = new FileInputStream( f );
-            FileChannel fc = fis.getChannel();
-            int read = fc.read( bb );
-            if( read != fileSize )
+            if( to - from > VALIDATE_CHUNK )
             {
-                alIssues.add( "Error reading file" );
-                return;
+                int mid = ( from + to ) >>> 1;
+                TagNames tn = new TagNames( parts, lower, mid, to );
+                tn.fork();
+                HashMap< String, IntList > hm = new TagNames( parts, lower, from, mid ).compute();
+                HashMap< String, IntList > hm2 = tn.join();
+                for( Map.Entry< String, IntList > e : hm2.entrySet() )
+                {
+                    IntList il = hm.get( e.getKey() );
+                    if( il == null )
+                        hm.put( e.getKey(), e.getValue() );
+                    else
+                        il.addAll( e.getValue() );
+                }
+                return( hm );
+            }
+            return( names() );
+        }
+        
+        // Summary of the whole range, by the calling thread
+        public HashMap< String, IntList > names()
+        {
+            HashMap< String, IntList > hm = new HashMap< String, IntList >();
+            for( int i = from; i < to; i++ )
+            {
+                HtmlPart hp = parts[ i ];
+                if( hp.type == HtmlPartType.TAG_START ||
+                    hp.type == HtmlPartType.TAG_EMPTY ||
+                    hp.type == HtmlPartType.TAG_END )
+                {
+                    lower[ i ] = hp.value.toLowerCase( Locale.ENGLISH );
+                    if( hp.type == HtmlPartType.TAG_EMPTY )
+                        continue;
+                    IntList il = hm.get( lower[ i ] );
+                    if( il == null )
+                    {
+                        il = new IntList();
+                        hm.put( lower[ i ], il );
+                    }
+                    il.add( hp.type == HtmlPartType.TAG_START ? i : ~i );
+                }
+            }
+            return( hm );
+        }
+    };
+    
+    // Applies the fixes found by "validateChunks()" to a range of tokens
+    // and puts a range of the result in place
+    private static class TagFixes extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private HtmlPart[] parts;
+        private String[] values;
+        private int[] levels;
+        private ArrayList< HtmlPart > alInserted;
+        private IntList ilOut;
+        private HtmlPart[] out;
+        private int from;
+        private int to;
+        
+        public TagFixes( HtmlPart[] parts, String[] values, int[] levels, ArrayList< HtmlPart > alInserted,
+                         IntList ilOut, HtmlPart[] out, int from, int to )
+        {
+            this.parts = parts;
+            this.values = values;
+            this.levels = levels;
+            this.alInserted = alInserted;
+            this.ilOut = ilOut;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+        
+        protected void compute()
+        {
+            if( to - from > VALIDATE_CHUNK )
+            {
+                int mid = ( from + to ) >>> 1;
+                invokeAll( new TagFixes( parts, values, levels, alInserted, ilOut, out, from, mid ),
+                           new TagFixes( parts, values, levels, alInserted, ilOut, out, mid, to ) );
+                return;
+            }
+            fix();
+        }
+        
+        // Fixes the whole range, by the calling thread
+        public void fix()
+        {
+            for( int i = from; i < Math.min( to, parts.length ); i++ )
+            {
+                parts[ i ].level = levels[ i ];
+                if( values[ i ] != null )
+                    parts[ i ].value = values[ i ];
+            }
+            for( int i = from; i < Math.min( to, out.length ); i++ )
+            {
+                int ref = ilOut.ai[ i ];
+                out[ i ] = ref >= 0 ? parts[ ref ] : alInserted.get( ~ref );
+            }
+        }
+    };
+    
+    // Tokens being validated by "validateChunks()": the original tokens are
+    // referred to by index (i), tokens added by validation by ~index in
+    // alInserted.  Values and levels of the originals are only kept aside,
+    // so that nothing changes if it must give up.
+    private HtmlPart[] vParts;
+    private String[] vLower;
+    private String[] vValues;
+    private int[] vLevels;
+    private ArrayList< HtmlPart > alInserted;
+    
+    private HtmlPartType vType( int ref )
+    {
+        return( ref >= 0 ? vParts[ ref ].type : alInserted.get( ~ref ).type );
+    }
+    
+    private String vValue( int ref )
+    {
+        if( ref < 0 )
+            return( alInserted.get( ~ref ).value );
+        return( vValues[ ref ] != null ? vValues[ ref ] : vParts[ ref ].value );
+    }
+    
+    private String vLower( int ref )
+    {
+        if( ref >= 0 && vValues[ ref ] == null && vLower[ ref ] != null )
+            return( vLower[ ref ] );
+        return( vValue( ref ).toLowerCase( Locale.ENGLISH ) );
+    }
+    
+    private void vSetValue( int ref, String value )
+    {
+        if( ref < 0 )
+            alInserted.get( ~ref ).value = value;
+        else
+            vValues[ ref ] = value;
+    }
+    
+    private void vSetLevel( int ref, int level )
+    {
+        if( ref < 0 )
+            alInserted.get( ~ref ).level = level;
+        else
+            vLevels[ ref ] = level;
+    }
+    
+    private int vInsert( String value, HtmlPartType type )
+    {
+        HtmlPart hp = newPart();
+        hp.value = value;
+        hp.type = type;
+        hp.offset = -1;
+        alInserted.add( hp );
+        return( ~( alInserted.size() - 1 ) );
+    }
+    
+    // First index of a sorted array holding a value at least x
+    private static int lowerBound( int[] ai, int x )
+    {
+        int index = Arrays.binarySearch( ai, x );
+        return( index >= 0 ? index : -index - 1 );
+    }
+    
+    // Fenwick tree sums
+    private static void treeAdd( int[] tree, int index, int delta )
+    {
+        for( index++; index < tree.length; index += index & -index )
+            tree[ index ] += delta;
+    }
+    
+    private static int treeSum( int[] tree, int index ) // sum of [0, index)
+    {
+        int sum = 0;
+        for( ; index > 0; index -= index & -index )
+            sum += tree[ index ];
+        return( sum );
+    }
+    
+    // Balances the tags, by "validateChunks()" unless it gives up or the
+    // steps are printed
+    private void balance()
+    {
+        if( debugValidate || !validateChunks() )
+            validate();
+    }
+    
+    // Same result as "validate()", which looks ahead through the rest of
+    // the tokens for every start tag and edits the list in place, but in
+    // O(n log n).  The positions of the start and end tags of each name are
+    // summarized, in parallel with "configParallel()", so that looking ahead is
+    // a binary search.
+    // End tags that "validate()" inserts ahead of the current token are
+    // attached to the start tag they come before and counted in a Fenwick
+    // tree per name.  The walk itself stays sequential, since each repair
+    // depends on the ones before it, then the fixes are applied (in
+    // parallel too).  Returns false, changing nothing, where "validate()" would
+    // throw, so that it can be called instead for the same issue.
+    private boolean validateChunks()
+    {
+        int n = alItems.size();
+        vParts = alItems.toArray( new HtmlPart[ n ] );
+        vLower = new String[ n ];
+        vValues = new String[ n ];
+        vLevels = new int[ n ];
+        alInserted = new ArrayList< HtmlPart >();
+        for( int i = 0; i < n; i++ )
+            vLevels[ i ] = vParts[ i ].level;
+        String rootElement = doctypeRootElement;
+        try
+        {
+            if( validateWalk() )
+                return( true );
+            doctypeRootElement = rootElement;
+            return( false );
+        }
+        finally
+        {
+            vParts = null;
+            vLower = null;
+            vValues = null;
+            vLevels = null;
+            alInserted = null;
+        }
+    }
+    
+    private boolean validateWalk()
+    {
+        int n = vParts.length;
+        
+        // Positions of the start and end tags of each name
+        TagNames tn = new TagNames( vParts, vLower, 0, n );
+        HashMap< String, IntList > hmNames = configPool != null ? configPool.invoke( tn ) : tn.names();
+        HashMap< String, Integer > hmIds = new HashMap< String, Integer >();
+        int[][] aaiStarts = new int[ hmNames.size() ][];
+        int[][] aaiEnds = new int[ hmNames.size() ][];
+        int[] aiOrdinals = new int[ n ];
+        for( Map.Entry< String, IntList > e : hmNames.entrySet() )
+        {
+            int id = hmIds.size();
+            hmIds.put( e.getKey(), id );
+            IntList il = e.getValue();
+            int starts = 0;
+            for( int i = 0; i < il.size; i++ )
+            {
+                if( il.ai[ i ] >= 0 )
+                    starts++;
+            }
+            aaiStarts[ id ] = new int[ starts ];
+            aaiEnds[ id ] = new int[ il.size - starts ];
+            int s = 0;
+            int t = 0;
+            for( int i = 0; i < il.size; i++ )
+            {
+                if( il.ai[ i ] >= 0 )
+                {
+                    aiOrdinals[ il.ai[ i ] ] = s;
+                    aaiStarts[ id ][ s++ ] = il.ai[ i ];
+                }
+                else
+                    aaiEnds[ id ][ t++ ] = ~il.ai[ i ];
+            }
+        }
+        int[][] aaiTrees = new int[ hmIds.size() ][]; // inserted ends per start
+        int[] aiAttached = new int[ n ]; // index in alInserted of an end before a start
+        Arrays.fill( aiAttached, -1 );
+        
+        // Tokens inserted before the next original (pending[ count - 1 ] first)
+        int[] aiPending = new int[ 8 ];
+        int pending = 0;
+        int next = 0;
+        
+        IntList ilOut = new IntList();
+        TagStack< Integer > tsTags = new TagStack< Integer >();
+        AttrTable atCurrentAttrs = new AttrTable();
+        int level = 1;
+        boolean firstTime = true;
+        while( true )
+        {
+            int ref;
+            if( pending > 0 )
+                ref = aiPending[ --pending ];
+            else if( next < n && aiAttached[ next ] != -1 )
+            {
+                ref = ~aiAttached[ next ];
+                aiAttached[ next ] = -1;
+                int id = hmIds.get( vLower[ next ] );
+                treeAdd( aaiTrees[ id ], aiOrdinals[ next ], -1 );
+            }
+            else if( next < n )
+                ref = next++;
+            else
+                break;
+            
+            HtmlPartType type = vType( ref );
+            if( type == HtmlPartType.TAG_START )
+            {
+                // make sure the first tag is "html" and case is correct for doctype declaration
+                if( firstTime )
+                {
+                    if( vLower( ref ).equals( doctypeRootElement ) ) // "html"
+                    {
+                        doctypeRootElement = vValue( ref ); // makes sure case is correct
+                    }
+                    else
+                    {
+                        // insert "html" start tag
+                        if( pending + 2 > aiPending.length )
+                            aiPending = Arrays.copyOf( aiPending, aiPending.length * 2 );
+                        aiPending[ pending++ ] = ref;
+                        aiPending[ pending++ ] = vInsert( doctypeRootElement, HtmlPartType.TAG_START );
+                        continue;
+                    }
+                    firstTime = false;
+                }
+                else
+                {
+                    // fix any nested "html", change to "div" with "InvalidHtmlTag" attribute
+                    if( vLower( ref ).equals( doctypeRootElement ) ) // "html"
+                    {
+                        vSetValue( ref, "div" );
+                        if( pending + 2 > aiPending.length )
+                            aiPending = Arrays.copyOf( aiPending, aiPending.length * 2 );
+                        aiPending[ pending++ ] = vInsert( doctypeRootElement, HtmlPartType.ATTR_VALUE );
+                        aiPending[ pending++ ] = vInsert( "InvalidHtmlTag", HtmlPartType.ATTR_NAME );
+                    }
+                }
+                atCurrentAttrs.reset();
+                
+                // check if there's a "proper" matching end: the next start
+                // or end of the same name is a start, and from there on
+                // there are more starts than ends
+                String name = vLower( ref );
+                Integer id = hmIds.get( name );
+                int countStart = 0;
+                int countEnd = 0;
+                int insertPending = -1;
+                boolean scan = true;
+                for( int i = pending - 1; i >= 0; i-- )
+                {
+                    HtmlPartType type2 = vType( aiPending[ i ] );
+                    if( ( type2 == HtmlPartType.TAG_START || type2 == HtmlPartType.TAG_END ) &&
+                        vLower( aiPending[ i ] ).equals( name ) )
+                    {
+                        if( insertPending == -1 && type2 == HtmlPartType.TAG_END )
+                        {
+                            scan = false;
+                            break;
+                        }
+                        if( insertPending == -1 )
+                            insertPending = i;
+                        if( type2 == HtmlPartType.TAG_START )
+                            countStart++;
+                        else
+                            countEnd++;
+                    }
+                }
+                if( scan && id != null )
+                {
+                    int[] aiStarts = aaiStarts[ id ];
+                    int[] aiEnds = aaiEnds[ id ];
+                    int[] aiTree = aaiTrees[ id ];
+                    int s = lowerBound( aiStarts, next );
+                    int e = lowerBound( aiEnds, next );
+                    if( insertPending == -1 )
+                    {
+                        if( s < aiStarts.length &&
+                            ( e == aiEnds.length || aiStarts[ s ] < aiEnds[ e ] ) &&
+                            aiAttached[ aiStarts[ s ] ] == -1 )
+                        {
+                            // inserted ends come right before a later start
+                            int inserted = aiTree == null ? 0 : treeSum( aiTree, aiTree.length - 1 ) - treeSum( aiTree, s + 1 );
+                            if( aiStarts.length - s > aiEnds.length - e + inserted )
+                            {
+                                // insert end tag ("level" assigned later)
+                                if( aiTree == null )
+                                {
+                                    aiTree = new int[ aiStarts.length + 1 ];
+                                    aaiTrees[ id ] = aiTree;
+                                }
+                                aiAttached[ aiStarts[ s ] ] = ~vInsert( new String( vValue( ref ) ), HtmlPartType.TAG_END );
+                                treeAdd( aiTree, s, 1 );
+                            }
+                        }
+                    }
+                    else
+                    {
+                        countStart += aiStarts.length - s;
+                        countEnd += aiEnds.length - e;
+                        if( aiTree != null )
+                            countEnd += treeSum( aiTree, aiTree.length - 1 ) - treeSum( aiTree, s );
+                    }
+                }
+                if( insertPending != -1 &&
+                    countStart > countEnd )
+                {
+                    // insert end tag before a pending start ("level" assigned later)
+                    if( pending + 1 > aiPending.length )
+                        aiPending = Arrays.copyOf( aiPending, aiPending.length * 2 );
+                    System.arraycopy( aiPending, insertPending + 1, aiPending, insertPending + 2, pending - insertPending - 1 );
+                    aiPending[ insertPending + 1 ] = vInsert( new String( vValue( ref ) ), HtmlPartType.TAG_END );
+                    pending++;
+                }
+                
+                vSetLevel( ref, level++ );
+                tsTags.push( ref, name );
+            }
+            else if( type == HtmlPartType.TAG_EMPTY )
+            {
+                atCurrentAttrs.reset();
+                
+                vSetLevel( ref, level );
+            }
+            else if( type == HtmlPartType.TAG_END )
+            {
+                if( tsTags.size() == 0 )
+                {
+                    // remove end tag
+                    continue;
+                }
+                
+                // Check to see if there's another "html" end tag, change current to "div"
+                if( vLower( ref ).equals( doctypeRootElement ) )
+                {
+                    boolean another = false;
+                    for( int i = pending - 1; i >= 0 && !another; i-- )
+                    {
+                        another = vType( aiPending[ i ] ) == HtmlPartType.TAG_END &&
+                                  vLower( aiPending[ i ] ).equals( doctypeRootElement );
+                    }
+                    Integer id = hmIds.get( doctypeRootElement );
+                    if( !another && id != null )
+                    {
+                        int[] aiStarts = aaiStarts[ id ];
+                        int[] aiTree = aaiTrees[ id ];
+                        another = lowerBound( aaiEnds[ id ], next ) < aaiEnds[ id ].length ||
+                                  ( aiTree != null &&
+                                    treeSum( aiTree, aiTree.length - 1 ) > treeSum( aiTree, lowerBound( aiStarts, next ) ) );
+                    }
+                    if( another )
+                        vSetValue( ref, "div" );
+                }
+                
+                String name = vLower( ref );
+                int ref2 = tsTags.peek();
+                if( tsTags.peekName().equals( name ) )
+                {
+                    tsTags.pop();
+                    vSetLevel( ref, --level );
+                    vSetValue( ref, new String( vValue( ref2 ) ) );
+                }
+                else
+                {
+                    // Check to see if current end tag has a match,
+                    // either remove current or add missing
+                    boolean found = tsTags.isOpen( name );
+                    if( found )
+                    {
+                        // insert end tag
+                        vSetLevel( ref, --level );
+                        if( pending + 2 > aiPending.length )
+                            aiPending = Arrays.copyOf( aiPending, aiPending.length * 2 );
+                        aiPending[ pending++ ] = ref;
+                        aiPending[ pending++ ] = vInsert( new String( vValue( ref2 ) ), HtmlPartType.TAG_END );
+                    }
+                    
+                    // else remove end tag
+                    continue;
+                }
+                
+                // remove anything after the "html" end tag
+                if( vLower( ref ).equals( doctypeRootElement ) )
+                {
+                    ilOut.add( ref );
+                    tsTags.clear();
+                    break;
+                }
+            }
+            else if( type == HtmlPartType.ATTR_NAME ||
+                     type == HtmlPartType.ATTR_SOLO )
+            {
+                // XML does not allow duplicate attributes
+                String value = vValue( ref );
+                if( !atCurrentAttrs.add( value, null ) )
+                {
+                    // remove attribute name (and value)
+                    if( type == HtmlPartType.ATTR_SOLO )
+                        continue;
+                    if( pending > 0 )
+                        pending--;
+                    else if( next < n && aiAttached[ next ] != -1 )
+                    {
+                        aiAttached[ next ] = -1;
+                        int id = hmIds.get( vLower[ next ] );
+                        treeAdd( aaiTrees[ id ], aiOrdinals[ next ], -1 );
+                    }
+                    else if( next < n )
+                        next++;
+                    else
+                        return( false ); // no value to remove, "validate()" throws
+                    continue;
+                }
+            }
+            ilOut.add( ref );
+        }
+        
+        // add end tags for any remaining start tags
+        while( tsTags.size() > 0 )
+            ilOut.add( vInsert( new String( vValue( tsTags.pop() ) ), HtmlPartType.TAG_END ) );
+        
+        // Apply the fixes
+        HtmlPart[] out = new HtmlPart[ ilOut.size ];
+        TagFixes tf = new TagFixes( vParts, vValues, vLevels, alInserted, ilOut, out, 0, Math.max( n, out.length ) );
+        if( configPool != null )
+            configPool.invoke( tf );
+        else
+            tf.fix();
+        alItems = new ArrayList< HtmlPart >( Arrays.asList( out ) );
+        return( true );
+    }
+    
+    // Breaks the document into tokens, the chunks after the first in
+    // parallel.  A chunk starts right after a '>', guessing it ends a tag.
+    // Its tokens are used from the first point where the tokenizer's state
+    // is only its position (see "addSync()") that the tokens before reach
+    // too; when they don't reach one, the tokens are made again
+    // sequentially until they do.  Leaves the rest, if any, to "parse()".
+    private void parseChunks()
+    {
+        int start = bb.position();
+        byte b0 = b;
+        int limit = bb.limit();
+        if( limit - start <= configChunkSize )
+            return;
+        
+        // Chunk starts
+        int[] aiStarts = new int[ ( limit - start ) / configChunkSize + 1 ];
+        int count = 0;
+        aiStarts[ count++ ] = start;
+        for( int pos = start + configChunkSize; pos < limit && count < aiStarts.length; pos += configChunkSize )
+        {
+            int i = pos;
+            while( i < limit && bb.get( i ) != TAG_CLOSE )
+                i++;
+            if( i + 1 >= limit )
+                break;
+            aiStarts[ count++ ] = i + 1;
+            pos = i + 1;
+        }
+        if( count < 2 )
+            return;
+        
+        String encoding = encodingText;
+        boolean found = encodingFound;
+        int issues = ilIssues.size();
+        ArrayList< ForkJoinTask< HtmlParser > > alTasks = new ArrayList< ForkJoinTask< HtmlParser > >();
+        for( int i = 1; i < count; i++ )
+        {
+            final HtmlParser hp = newChunkParser( aiStarts[ i ], i + 1 < count ? aiStarts[ i + 1 ] : Integer.MAX_VALUE );
+            alTasks.add( configPool.submit( new Callable< HtmlParser >()
+            {
+                public HtmlParser call()
+                {
+                    hp.parseChunk();
+                    return( hp );
+                }
+            } ) );
+        }
+        
+        try
+        {
+            // First chunk
+            syncStop = aiStarts[ 1 ];
+            if( !parseStep() )
+                return;
+            
+            for( int i = 0; i < alTasks.size(); i++ )
+            {
+                if( !encodingText.equals( encoding ) )
+                    return;
+                HtmlParser hp = alTasks.get( i ).join();
+                int pos = bb.position();
+                if( hp.syncCount == 0 ||
+                    hp.aiSyncPos[ hp.syncCount - 1 ] <= pos )
+                    continue;
+                int index = Arrays.binarySearch( hp.aiSyncPos, 0, hp.syncCount, pos );
+                if( index < 0 )
+                {
+                    // Chunk started inside something else, go until in step with it
+                    aiResyncPos = hp.aiSyncPos;
+                    resyncCount = hp.syncCount;
+                    resyncFrom = -index - 1;
+                    resyncMin = pos + 1;
+                    resyncDelta = 0;
+                    resyncIndex = -1;
+                    syncStop = hp.aiSyncPos[ hp.syncCount - 1 ];
+                    if( !parseStep() )
+                        return;
+                    if( resyncIndex == -1 )
+                        continue;
+                    index = resyncIndex;
+                }
+                addChunk( hp, index );
+            }
+        }
+        catch( RuntimeException ex )
+        {
+            // Restarted for the encoding, then failed: leave it all to "parse()"
+            alItems.clear();
+            ilIssues.truncate( issues );
+            syncCount = 0;
+            syncIssueBase = issues;
+            encodingFound = found;
+            encodingOffset = -1;
+            setEncodingText( encoding );
+            bb.position( start );
+            b = b0;
+        }
+        finally
+        {
+            aiResyncPos = null;
+            syncStop = Integer.MAX_VALUE;
+            for( int i = 0; i < alTasks.size(); i++ )
+                alTasks.get( i ).cancel( false );
+        }
+    }
+    
+    // Tokenizes up to the next stop, returns false if it ran to the end.
+    // If an exception is thrown, goes back to where it started, so that
+    // "parse()" throws it again (with the same stack trace as usual).
+    private boolean parseStep()
+    {
+        int pos = bb.position();
+        byte b0 = b;
+        int items = alItems.size();
+        int issues = ilIssues.size();
+        int syncs = syncCount;
+        boolean found = encodingFound;
+        syncStopped = false;
+        try
+        {
+            parse( false );
+        }
+        catch( RuntimeException ex )
+        {
+            if( found != encodingFound )
+                throw ex; // tokens before were dropped by the restart
+            alItems.subList( items, alItems.size() ).clear();
+            ilIssues.truncate( issues );
+            syncCount = syncs;
+            bb.position( pos );
+            b = b0;
+            return( false );
+        }
+        if( !syncStopped )
+            return( false );
+        syncCount--; // recorded again when going on
+        return( true );
+    }
+    
+    private HtmlParser newChunkParser( int start, int stop )
+    {
+        HtmlParser hp = new HtmlParser();
+        hp.bb = bb.duplicate();
+        hp.bb.position( start );
+        hp.b = TAG_CLOSE;
+        hp.setEncodingText( encodingText );
+        hp.encodingFound = encodingFound;
+        hp.configIncremental = true;
+        hp.configExtractText = configExtractText;
+        hp.hmExtractElements = hmExtractElements;
+        hp.hmExtractAttributes = hmExtractAttributes;
+        hp.extracting = extracting;
+        hp.syncStop = stop;
+        return( hp );
+    }
+    
+    // Tokens of a chunk, up to its last point only; the rest may be cut
+    // off by an encoding directive or exception
+    private void parseChunk()
+    {
+        try
+        {
+            parse( true );
+        }
+        catch( RuntimeException ex ) {}
+    }
+    
+    // Appends a chunk's tokens from its point at the current position
+    private void addChunk( HtmlParser hp, int index )
+    {
+        int last = hp.syncCount - 1;
+        int itemsDelta = alItems.size() - hp.aiSyncItems[ index ];
+        int issuesDelta = ilIssues.size() - hp.aiSyncIssues[ index ];
+        alItems.addAll( hp.alItems.subList( hp.aiSyncItems[ index ], hp.aiSyncItems[ last ] ) );
+        ilIssues.addAll( hp.ilIssues, hp.aiSyncIssues[ index ], hp.aiSyncIssues[ last ], 0 );
+        for( int i = index; i < last; i++ )
+            addSync( hp.aiSyncPos[ i ], hp.aiSyncItems[ i ] + itemsDelta, hp.aiSyncIssues[ i ] + issuesDelta );
+        bb.position( hp.aiSyncPos[ last ] );
+        b = TAG_CLOSE;
+    }
+    
+    private void process( boolean encodingOnly )
+    {
+        try
+        {
+            // record BOM if it exists
+            if( bb.limit() >= 3 )
+            {
+                byte[] bytes = new byte[ 3 ];
+                bb.get( bytes, 0, 3 );
+                if( ( bytes[ 0 ] & 0xFF ) == 0xEF &&
+                    ( bytes[ 1 ] & 0xFF ) == 0xBB &&
+                    ( bytes[ 2 ] & 0xFF ) == 0xBF )
+                    b = 3;
+                else
+                    bb.rewind();                    
+            }
+            
+            // process
+            if( configPool != null && !encodingOnly && !debugParser )
+                parseChunks();
+            parse( encodingOnly );
+            if( configIncremental && !encodingOnly && !extracting )
+                keepTokens();
+            if( configValidate && !encodingOnly && !extracting )
+            {
+                if( configImpliedEndTags )
+                    implyEndTags();
+                balance();
+            }
+        }
+        catch( Exception ex )
+        {
+            alTokens = null;
+            alTokenItems = null;
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter( sw );
+            ex.printStackTrace( pw );
+            ilIssues.add( sw.toString() );
+        }
+    }
+    
+    // process() behind the cache, if any; bb is at position 0
+    private void processCached( boolean encodingOnly )
+    {
+        if( configCache == null || encodingOnly || extracting )
+        {
+            process( encodingOnly );
+            return;
+        }
+        
+        // The settings that change the parse items: configValidate() and
+        // configImpliedEndTags().  Extraction mode changes them too but
+        // isn't cached (above).  The others don't: configElemAttrLowerCase()
+        // is applied on output; configParallel(), configParallelChunk(),
+        // configArena(), configScratchLimit() and the debug flags give the
+        // same items; configIncremental() only keeps the tokens, which a hit
+        // leaves out, so "parseDataEdit()" parses the next edit in full;
+        // configSniffLimit() is for the "sniff()" methods only.
+        int config = ( configValidate ? 1 : 0 ) | ( configImpliedEndTags ? 2 : 0 );
+        ParseCache.Key key = ParseCache.key( bb, config );
+        byte[] entry = configCache.get( key );
+        if( entry != null )
+        {
+            readParseItems( ByteBuffer.wrap( entry ) );
+            return;
+        }
+        
+        process( false );
+        try
+        {
+            ByteArrayOutputStream baos = outputStream();
+            saveParseItems( baos );
+            configCache.put( key, baos.toByteArray() );
+            keepOutputStream( baos );
+        }
+        catch( IOException ex ) {}
+    }
+    
+    private void parseFile( String file, boolean encodingOnly )
+    {
+        parseReset();
+        
+        File f = new File( file );
+        if( !f.exists() )
+        {
+            ilIssues.add( "File does not exist" );
+            return;
+        }
+        if( f.length() == 0 )
+        {
+            ilIssues.add( "File size is zero" );
+            return;
+        }
+        if( f.length() > Integer.MAX_VALUE )
+        {
+            ilIssues.add( "File size is greater than " + Integer.MAX_VALUE );
+            return;
+        }
+        int fileSize = ( int )f.length();
+        
+        bb = inputBuffer( fileSize );
+        inputLength = fileSize;
+        FileInputStream fis = null;
+        try
+        {
+            fis = new FileInputStream( f );
+            FileChannel fc = fis.getChannel();
+            int read = fc.read( bb );
+            if( read != fileSize )
+            {
+                ilIssues.add( "Error reading file" );
+                return;
+            }
+        }
+        catch( Exception ex )
+        {
+            ilIssues.add( "Exception: " + ex.getMessage() );
+            return;
+        }
+        
+        bb.position( 0 );
+        
+        processCached( encodingOnly );
+    }
+    
+    /**
+     * There are four methods to parse the HTML:
+     * parseFile( String file ),
+     * parseData( byte[] bytes ),
+     * parseFileEncodingOnly( String file ),
+     * parseDataEncodingOnly( byte[] bytes ).
+     * <p>
+     * This method parses the file completely, taking the file name
+     * as an argument.
+     * @param file File to be parsed
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseFile( String file )
+    {
+        long start = System.nanoTime();
+        parseFile( file, false );
+        return( result( start ) );
+    }
+    
+    /**
+     * There are four methods to parse the HTML:
+     * parseFile( String file ),
+     * parseData( byte[] bytes ),
+     * parseFileEncodingOnly( String file ),
+     * parseDataEncodingOnly( byte[] bytes ).
+     * <p>
+     * This method parses the file until know the encoding, taking the file
+     * name as an argument.
+     * @param file File to be parsed
+     */
+    public String parseFileEncodingOnly( String file )
+    {
+        parseFile( file, true );
+        return( encodingText );
+    }
+    
+    private void parseData( byte[] bytes, boolean encodingOnly )
+    {
+        parseReset();
+        
+        if( bytes == null ||
+            bytes.length == 0 )
+        {
+            ilIssues.add( "Buffer is empty" );
+            return;            
+        }
+        int size = bytes.length;
+        
+        bb = inputBuffer( size );
+        inputLength = size;
+        bb.put( bytes );
+        
+        bb.position( 0 );
+        
+        processCached( encodingOnly );
+    }
+    
+    /**
+     * There are four methods to parse the HTML:
+     * parseFile( String file ),
+     * parseData( byte[] bytes ),
+     * parseFileEncodingOnly( String file ),
+     * parseDataEncodingOnly( byte[] bytes ).
+     * <p>
+     * This method parses the file completely, taking a byte array
+     * as an argument.
+     * @param bytes Byte array to be parsed
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseData( byte[] bytes )
+    {
+        long start = System.nanoTime();
+        parseData( bytes, false );
+        return( result( start ) );
+    }
+    
+    /**
+     * There are four methods to parse the HTML:
+     * parseFile( String file ),
+     * parseData( byte[] bytes ),
+     * parseFileEncodingOnly( String file ),
+     * parseDataEncodingOnly( byte[] bytes ).
+     * <p>
+     * This method parses the file until know the encoding, taking a byte
+     * array as an argument.
+     * @param bytes Byte array to be parsed
+     */
+    public String parseDataEncodingOnly( byte[] bytes )
+    {
+        parseData( bytes, true );
+        return( encodingText );
+    }
+    
+    private void parseBuffer( ByteBuffer buf, boolean encodingOnly )
+    {
+        parseReset();
+        
+        if( buf == null ||
+            !buf.hasRemaining() )
+        {
+            ilIssues.add( "Buffer is empty" );
+            return;
+        }
+        
+        // Read in place, tokens are copied out with bulk gets
+        bb = buf.slice();
+        inputLength = bb.limit();
+        
+        processCached( encodingOnly );
+    }
+    
+    /**
+     * Same as "parseData()", reading the bytes between the position and
+     * the limit of the given buffer in place, without copying them, so that
+     * direct and mapped buffers are read where they are.  The buffer's
+     * position is not moved, and its bytes must not change during the parse.
+     * 
+     * @param buf Buffer to be parsed (heap, direct or mapped)
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseBuffer( ByteBuffer buf )
+    {
+        long start = System.nanoTime();
+        parseBuffer( buf, false );
+        return( result( start ) );
+    }
+    
+    /**
+     * Same as "parseDataEncodingOnly()", reading the bytes of the given
+     * buffer in place (see "parseBuffer()").
+     * 
+     * @param buf Buffer to be parsed (heap, direct or mapped)
+     */
+    public String parseBufferEncodingOnly( ByteBuffer buf )
+    {
+        parseBuffer( buf, true );
+        return( encodingText );
+    }
+    
+    private static final int INPUT_CHUNK = 1 << 16;
+    
+    // Reads the whole stream straight into the input buffer.  Past its
+    // capacity the rest is read in fixed chunks, then copied once into a
+    // buffer of the exact size, so the document is never held more than
+    // about twice.
+    private boolean readInput( InputStream is )
+    {
+        ByteBuffer buf = inputBuffer( bbInputScratch != null ? bbInputScratch.capacity() : INPUT_CHUNK );
+        try
+        {
+            buf.position( readFully( is, buf.array(), buf.arrayOffset(), buf.remaining() ) );
+            if( !buf.hasRemaining() )
+            {
+                ArrayList< byte[] > alChunks = new ArrayList< byte[] >();
+                long size = buf.position();
+                int read = INPUT_CHUNK;
+                while( read == INPUT_CHUNK )
+                {
+                    byte[] chunk = new byte[ INPUT_CHUNK ];
+                    read = readFully( is, chunk, 0, INPUT_CHUNK );
+                    alChunks.add( chunk );
+                    size += read;
+                    if( size > Integer.MAX_VALUE )
+                    {
+                        ilIssues.add( "Stream size is greater than " + Integer.MAX_VALUE );
+                        return( false );
+                    }
+                }
+                if( size > buf.position() ) // else it ended right at the capacity
+                {
+                    ByteBuffer exact = inputBuffer( ( int )size );
+                    buf.flip();
+                    exact.put( buf );
+                    for( int i = 0; i < alChunks.size(); i++ )
+                        exact.put( alChunks.get( i ), 0, Math.min( INPUT_CHUNK, exact.remaining() ) );
+                    buf = exact;
+                }
+            }
+        }
+        catch( Exception ex )
+        {
+            ilIssues.add( "Exception: " + ex.getMessage() );
+            return( false );
+        }
+        buf.flip();
+        if( !buf.hasRemaining() )
+        {
+            ilIssues.add( "Stream is empty" );
+            return( false );
+        }
+        bb = buf;
+        inputLength = buf.limit();
+        return( true );
+    }
+    
+    // Reads until the given length is read or the stream ends, returns the
+    // number of bytes read
+    private static int readFully( InputStream is, byte[] bytes, int offset, int length ) throws IOException
+    {
+        int count = 0;
+        while( count < length )
+        {
+            int read = is.read( bytes, offset + count, length - count );
+            if( read == -1 )
+                break;
+            count += read;
+        }
+        return( count );
+    }
+    
+    /**
+     * Same as "parseData()", reading the bytes from the given stream,
+     * which is read to the end but not closed.  The bytes are read straight
+     * into the parser's input buffer (see "configScratchLimit()") while
+     * they fit, the rest in chunks then copied once into a buffer of the
+     * exact size.
+     * 
+     * @param is Stream to be parsed
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseStream( InputStream is )
+    {
+        long start = System.nanoTime();
+        parseReset();
+        if( readInput( is ) )
+            processCached( false );
+        return( result( start ) );
+    }
+    
+    // Inflating stream for gzip or zlib (deflate) compressed bytes, told
+    // apart by their headers, otherwise the bytes as they are
+    private static InputStream inflating( InputStream is ) throws IOException
+    {
+        BufferedInputStream bis = new BufferedInputStream( is, 1 << 16 );
+        bis.mark( 2 );
+        int b0 = bis.read();
+        int b1 = bis.read();
+        bis.reset();
+        if( b0 == 0x1F && b1 == 0x8B )
+            return( new GZIPInputStream( bis, 1 << 16 ) );
+        if( b0 != -1 && b1 != -1 &&
+            ( b0 & 0x0F ) == 8 && ( b0 >> 4 ) <= 7 && ( b1 & 0x20 ) == 0 &&
+            ( ( b0 << 8 ) | b1 ) % 31 == 0 )
+            return( new InflaterInputStream( bis ) );
+        return( bis );
+    }
+    
+    /**
+     * Same as "parseStream()" for a gzip or deflate (zlib) compressed
+     * stream, as in crawl archives, inflated into the parser's input buffer
+     * the same way, without a compressed or inflated copy of the whole
+     * document in between.  The compression is recognized by its header,
+     * other streams are parsed as they are.
+     * 
+     * @param is Compressed stream to be parsed
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseCompressedStream( InputStream is )
+    {
+        long start = System.nanoTime();
+        parseReset();
+        try
+        {
+            if( readInput( inflating( is ) ) )
+                processCached( false );
+        }
+        catch( Exception ex )
+        {
+            ilIssues.add( "Exception: " + ex.getMessage() );
+        }
+        return( result( start ) );
+    }
+    
+    /**
+     * Same as "parseCompressedStream()", reading the given channel, which
+     * must be in blocking mode (a non-blocking one is reported as an issue,
+     * nothing is read).
+     * 
+     * @param rbc Compressed channel to be parsed
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseCompressedChannel( ReadableByteChannel rbc )
+    {
+        if( rbc instanceof SelectableChannel &&
+            !( ( SelectableChannel )rbc ).isBlocking() )
+        {
+            long start = System.nanoTime();
+            parseReset();
+            ilIssues.add( "Channel is in non-blocking mode" );
+            return( result( start ) );
+        }
+        return( parseCompressedStream( Channels.newInputStream( rbc ) ) );
+    }
+    
+    // What "parseArchive()" writes for a record: a conversion record with
+    // the clean XML, if HTML, and an issue, if any
+    private static class ArchiveEntry
+    {
+        public ByteBuffer[] abbRecord = null;
+        public String issue = null;
+    };
+    
+    private static final byte[] WARC_RECORD_END = { '\r', '\n', '\r', '\n' };
+    
+    private static ArchiveEntry archiveEntry( HtmlParser hp, WarcReader.Record r )
+    {
+        ArchiveEntry ae = new ArchiveEntry();
+        String id = r.header( "warc-record-id" );
+        ByteBuffer html = r.html();
+        if( html == null )
+        {
+            if( r.unsupported != null )
+                ae.issue = "Record " + id + " at " + r.offset + " skipped: " + r.unsupported;
+            return( ae );
+        }
+        
+        // Parsed in place, written as UTF-8
+        hp.parseBuffer( html, false );
+        if( hp.getNumParseIssues() > 0 )
+            ae.issue = "Record " + id + " at " + r.offset + ": " + hp.getNumParseIssues() + " parse issues";
+        ByteBuffer xml = ByteBuffer.allocate( hp.estimateCleanXmlLength() + 16 );
+        while( true )
+        {
+            try
+            {
+                hp.writeCleanXml( xml, hp.encodingTags );
+                break;
+            }
+            catch( BufferOverflowException ex )
+            {
+                xml = ByteBuffer.allocate( xml.capacity() * 2 );
+            }
+        }
+        xml.flip();
+        
+        StringBuilder sb = new StringBuilder( 256 );
+        sb.append( "WARC/1.0\r\n" );
+        sb.append( "WARC-Type: conversion\r\n" );
+        if( r.header( "warc-target-uri" ) != null )
+            sb.append( "WARC-Target-URI: " ).append( r.header( "warc-target-uri" ) ).append( "\r\n" );
+        if( r.header( "warc-date" ) != null )
+            sb.append( "WARC-Date: " ).append( r.header( "warc-date" ) ).append( "\r\n" );
+        String source = id != null ? id : "at " + r.offset;
+        sb.append( "WARC-Record-ID: <urn:uuid:" )
+          .append( UUID.nameUUIDFromBytes( ( "clean-xml " + source ).getBytes( UTF8 ) ) )
+          .append( ">\r\n" );
+        if( id != null )
+            sb.append( "WARC-Refers-To: " ).append( id ).append( "\r\n" );
+        sb.append( "Content-Type: application/xml\r\n" );
+        sb.append( "Content-Length: " ).append( xml.remaining() ).append( "\r\n\r\n" );
+        ae.abbRecord = new ByteBuffer[] { ByteBuffer.wrap( sb.toString().getBytes( UTF8 ) ),
+                                          xml,
+                                          ByteBuffer.wrap( WARC_RECORD_END ) };
+        return( ae );
+    }
+    
+    /**
+     * Parses the HTML records of an (uncompressed) WARC archive and writes a
+     * companion archive with a "conversion" record for each, holding its
+     * clean XML in UTF-8 and referring to the original record.  The archive
+     * is memory mapped and each HTML payload is parsed in place (see
+     * "parseBuffer()").  Response records are read through their HTTP
+     * headers; chunked or compressed payloads are skipped and reported.
+     * With a pool (see "configParallel()") the records are parsed in
+     * parallel, the companion archive keeping their order.  Afterwards
+     * "getParseIssues()" lists the issues with the archive and its records.
+     * 
+     * @param archive WARC archive to be parsed
+     * @param file File in which to write the companion archive
+     * @return The number of records converted.
+     * @throws IllegalStateException In extraction mode, which has no clean XML.
+     */
+    public int parseArchive( String archive, String file )
+    {
+        parseReset();
+        checkCleanXml();
+        
+        int count = 0;
+        try
+        {
+            FileInputStream fis = new FileInputStream( archive );
+            try
+            {
+                FileOutputStream fos = new FileOutputStream( file );
+                try
+                {
+                    WarcReader wr = new WarcReader( fis.getChannel() );
+                    FileChannel fcOut = fos.getChannel();
+                    TaskWindow< ArchiveEntry > twTasks = configPool != null ? new TaskWindow< ArchiveEntry >( configPool ) : null;
+                    final Workers wWorkers = new Workers( newWorker() );
+                    HtmlParser worker = twTasks == null ? wWorkers.take() : null;
+                    boolean more = true;
+                    while( true )
+                    {
+                        // With a pool, a few records are parsed ahead of the one written
+                        ArchiveEntry ae;
+                        if( twTasks == null )
+                        {
+                            WarcReader.Record r = wr.next();
+                            if( r == null )
+                                break;
+                            ae = archiveEntry( worker, r );
+                        }
+                        else
+                        {
+                            while( more && !twTasks.isFull() )
+                            {
+                                final WarcReader.Record r = wr.next();
+                                if( r == null )
+                                {
+                                    more = false;
+                                    break;
+                                }
+                                twTasks.submit( new Callable< ArchiveEntry >()
+                                {
+                                    public ArchiveEntry call()
+                                    {
+                                        HtmlParser hp = wWorkers.take();
+                                        try
+                                        {
+                                            return( archiveEntry( hp, r ) );
+                                        }
+                                        finally
+                                        {
+                                            wWorkers.give( hp );
+                                        }
+                                    }
+                                } );
+                            }
+                            if( twTasks.isEmpty() )
+                                break;
+                            ae = twTasks.take( true );
+                        }
+                        
+                        if( ae.issue != null )
+                            ilIssues.add( ae.issue );
+                        if( ae.abbRecord == null )
+                            continue;
+                        while( ae.abbRecord[ 2 ].hasRemaining() )
+                            fcOut.write( ae.abbRecord );
+                        count++;
+                    }
+                }
+                finally
+                {
+                    fos.close();
+                }
+            }
+            finally
+            {
+                fis.close();
+            }
+        }
+        catch( Exception ex )
+        {
+            ilIssues.add( "Exception: " + ex.getMessage() );
+        }
+        return( count );
+    }
+    
+    /**
+     * Parses an edited version of the last document parsed with
+     * "configIncremental( true )".  Only the tokens from the tag before the
+     * edit up to where the tokenizer gets back in step with the previous
+     * parse are made again, the others are reused with their offsets moved.
+     * When the edit doesn't change any element or attribute name, the
+     * previous validation is reused too, otherwise the tokens are validated
+     * again.  Falls back to "parseData()" when the edit touches the
+     * encoding or the previous parse can't be reused.
+     * 
+     * @param bytes The whole edited document.
+     * @param offset Index of the first byte edited.
+     * @param oldLength Number of bytes replaced in the previous document.
+     * @param newLength Number of bytes that replaced them.
+     * @return The results, kept apart from the parser (see "ParseResult").
+     */
+    public ParseResult parseDataEdit( byte[] bytes, int offset, int oldLength, int newLength )
+    {
+        long start = System.nanoTime();
+        if( !parseEdit( bytes, offset, oldLength, newLength ) )
+            parseData( bytes, false );
+        return( result( start ) );
+    }
+    
+    // Snapshot of the results of the parse begun at the given time, the
+    // parts themselves may be recycled (see "configArena()")
+    private ParseResult result( long start )
+    {
+        int count = alItems.size();
+        byte[] abTypes = new byte[ count ];
+        String[] asValues = new String[ count ];
+        int[] aiOffsets = new int[ count ];
+        int[] aiLevels = new int[ count ];
+        for( int i = 0; i < count; i++ )
+        {
+            HtmlPart hp = alItems.get( i );
+            abTypes[ i ] = ( byte )hp.type.ordinal();
+            asValues[ i ] = hp.value;
+            aiOffsets[ i ] = hp.offset;
+            aiLevels[ i ] = hp.level;
+        }
+        return( new ParseResult( abTypes, asValues, aiOffsets, aiLevels, ilIssues.toArray(),
+                                 encodingText, doctypeRootElement, configElemAttrLowerCase, extracted,
+                                 inputLength, System.nanoTime() - start ) );
+    }
+    
+    // Parser with the same configuration for "parseAll()", "parseArchive()"
+    // and "Async()" tasks, each of which parses a whole document
+    private HtmlParser newWorker()
+    {
+        HtmlParser hp = new HtmlParser();
+        hp.debugParser = debugParser;
+        hp.debugValidate = debugValidate;
+        hp.configValidate = configValidate;
+        hp.configElemAttrLowerCase = configElemAttrLowerCase;
+        hp.configImpliedEndTags = configImpliedEndTags;
+        hp.configSniffLimit = configSniffLimit;
+        hp.configCache = configCache;
+        hp.configIncremental = configIncremental;
+        hp.configPool = configPool;
+        hp.configChunkSize = configChunkSize;
+        hp.configExtractText = configExtractText;
+        hp.hmExtractElements = hmExtractElements;
+        hp.hmExtractAttributes = hmExtractAttributes;
+        hp.extracting = extracting;
+        hp.configScratchLimit = configScratchLimit;
+        hp.configArena( ahpArena != null );
+        return( hp );
+    }
+    
+    // Parsers with one configuration, reused from one task to the next by
+    // "parseAll()", "parseArchive()" and the "Async()" methods
+    private static class Workers
+    {
+        private HtmlParser hpConfig;
+        private ConcurrentLinkedQueue< HtmlParser > clqIdle = new ConcurrentLinkedQueue< HtmlParser >();
+        
+        public Workers( HtmlParser config )
+        {
+            hpConfig = config;
+        }
+        
+        public HtmlParser take()
+        {
+            HtmlParser hp = clqIdle.poll();
+            if( hp == null )
+                hp = hpConfig.newWorker();
+            return( hp );
+        }
+        
+        public void give( HtmlParser hp )
+        {
+            clqIdle.offer( hp );
+        }
+    }
+    
+    // Tasks on a pool, at most twice as many as its parallelism at a time,
+    // taken back in the order submitted or, if not ordered, as soon as done
+    private static class TaskWindow< T >
+    {
+        private ForkJoinPool pool;
+        private int window;
+        private ArrayList< ForkJoinTask< T > > alPending = new ArrayList< ForkJoinTask< T > >();
+        
+        public TaskWindow( ForkJoinPool pool )
+        {
+            this.pool = pool;
+            window = pool.getParallelism() * 2;
+        }
+        
+        public boolean isFull()
+        {
+            return( alPending.size() >= window );
+        }
+        
+        public boolean isEmpty()
+        {
+            return( alPending.size() == 0 );
+        }
+        
+        public void submit( Callable< T > task )
+        {
+            alPending.add( pool.submit( task ) );
+        }
+        
+        public T take( boolean ordered )
+        {
+            // Unordered: any done, else wait for the oldest
+            int index = 0;
+            for( int i = 0; !ordered && i < alPending.size(); i++ )
+            {
+                if( alPending.get( i ).isDone() )
+                {
+                    index = i;
+                    break;
+                }
+            }
+            return( alPending.remove( index ).join() );
+        }
+    }
+    
+    // Results of "parseAll()" with a pool: a few documents are parsed ahead
+    // of the results read
+    private class ResultIterator implements Iterator< ParseResult >
+    {
+        private Iterator< byte[] > itInputs;
+        private boolean ordered;
+        private TaskWindow< ParseResult > twTasks;
+        private Workers wWorkers;
+        
+        public ResultIterator( Iterator< byte[] > inputs, boolean ordered )
+        {
+            itInputs = inputs;
+            this.ordered = ordered;
+            twTasks = new TaskWindow< ParseResult >( configPool );
+            wWorkers = new Workers( newWorker() );
+        }
+        
+        private void fill()
+        {
+            while( !twTasks.isFull() && itInputs.hasNext() )
+            {
+                final byte[] bytes = itInputs.next();
+                twTasks.submit( new Callable< ParseResult >()
+                {
+                    public ParseResult call()
+                    {
+                        HtmlParser hp = wWorkers.take();
+                        try
+                        {
+                            return( hp.parseData( bytes ) );
+                        }
+                        finally
+                        {
+                            wWorkers.give( hp );
+                        }
+                    }
+                } );
+            }
+        }
+        
+        public boolean hasNext()
+        {
+            fill();
+            return( !twTasks.isEmpty() );
+        }
+        
+        public ParseResult next()
+        {
+            fill();
+            if( twTasks.isEmpty() )
+                throw new NoSuchElementException();
+            return( twTasks.take( ordered ) );
+        }
+        
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Parses a sequence of documents, as the results are read, and returns
+     * the results of each apart from the parser (see "ParseResult").
+     * Buffers are reused from one document to the next.  With a pool (see
+     * "configParallel()") a few documents at a time are parsed in parallel,
+     * each one sequentially, and the results come in the order of the
+     * documents or, if not ordered, as soon as they're done.  Without one,
+     * this parser parses them in order.
+     * 
+     * @param inputs The documents (bytes) to be parsed
+     * @param ordered pass true for the results in the order of the documents
+     * @return The results, one per document.
+     */
+    public Iterator< ParseResult > parseAll( Iterable< byte[] > inputs, boolean ordered )
+    {
+        final Iterator< byte[] > itInputs = inputs.iterator();
+        if( configPool != null )
+            return( new ResultIterator( itInputs, ordered ) );
+        return( new Iterator< ParseResult >()
+        {
+            public boolean hasNext()
+            {
+                return( itInputs.hasNext() );
+            }
+            
+            public ParseResult next()
+            {
+                return( parseData( itInputs.next() ) );
+            }
+            
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        } );
+    }
+    
+    // Task of "parseFileAsync()" and "parseDataAsync()", parsing by a reused
+    // parser and telling the callback, if any
+    private static class AsyncParse implements Callable< ParseResult >
+    {
+        private Workers wWorkers;
+        private String file;
+        private byte[] bytes;
+        private ParseCallback callback;
+        
+        public AsyncParse( Workers workers, String file, byte[] bytes, ParseCallback callback )
+        {
+            wWorkers = workers;
+            this.file = file;
+            this.bytes = bytes;
+            this.callback = callback;
+        }
+        
+        public ParseResult call()
+        {
+            ParseResult pr;
+            HtmlParser hp = wWorkers.take();
+            try
+            {
+                if( file != null )
+                    pr = hp.parseFile( file );
+                else
+                    pr = hp.parseData( bytes );
+            }
+            catch( RuntimeException ex )
+            {
+                if( callback != null )
+                    callback.failed( ex );
+                throw ex;
+            }
+            catch( Error err )
+            {
+                if( callback != null )
+                    callback.failed( err );
+                throw err;
+            }
+            finally
+            {
+                wWorkers.give( hp );
+            }
+            if( callback != null )
+                callback.parsed( pr );
+            return( pr );
+        }
+    }
+    
+    private Future< ParseResult > parseAsync( String file, byte[] bytes, ParseCallback callback )
+    {
+        if( configExecutor == null )
+            throw new IllegalStateException( "No executor, see configAsync()" );
+        return( configExecutor.submit( new AsyncParse( wAsyncWorkers, file, bytes, callback ) ) );
+    }
+    
+    /**
+     * Same as "parseFile()" on the executor (see "configAsync()"), so that
+     * the caller doesn't wait for the parse.  The results are kept apart
+     * from this parser (see "ParseResult"), whose state doesn't change.
+     * 
+     * @param file File to be parsed
+     * @return The results, once parsed.
+     * @throws IllegalStateException If there's no executor.
+     * @throws java.util.concurrent.RejectedExecutionException If the
+     * executor's queue is full and its policy rejects the file.
+     */
+    public Future< ParseResult > parseFileAsync( String file )
+    {
+        return( parseAsync( file, null, null ) );
+    }
+    
+    /**
+     * Same as "parseFileAsync( String )", also handing the results to the
+     * given callback once parsed, so that the caller needn't wait on the
+     * future at all.
+     * 
+     * @param file File to be parsed
+     * @param callback Told of the results, on the executor's thread
+     * @return The results, once parsed.
+     * @throws IllegalStateException If there's no executor.
+     * @throws java.util.concurrent.RejectedExecutionException If the
+     * executor's queue is full and its policy rejects the file (the
+     * callback isn't called).
+     */
+    public Future< ParseResult > parseFileAsync( String file, ParseCallback callback )
+    {
+        return( parseAsync( file, null, callback ) );
+    }
+    
+    /**
+     * Same as "parseData()" on the executor (see "parseFileAsync()").  The
+     * bytes must not change until parsed.
+     * 
+     * @param bytes Byte array to be parsed
+     * @return The results, once parsed.
+     * @throws IllegalStateException If there's no executor.
+     * @throws java.util.concurrent.RejectedExecutionException If the
+     * executor's queue is full and its policy rejects the bytes.
+     */
+    public Future< ParseResult > parseDataAsync( byte[] bytes )
+    {
+        return( parseAsync( null, bytes, null ) );
+    }
+    
+    /**
+     * Same as "parseDataAsync( byte[] )", also handing the results to the
+     * given callback once parsed (see "parseFileAsync( String,
+     * ParseCallback )").
+     * 
+     * @param bytes Byte array to be parsed
+     * @param callback Told of the results, on the executor's thread
+     * @return The results, once parsed.
+     * @throws IllegalStateException If there's no executor.
+     * @throws java.util.concurrent.RejectedExecutionException If the
+     * executor's queue is full and its policy rejects the bytes (the
+     * callback isn't called).
+     */
+    public Future< ParseResult > parseDataAsync( byte[] bytes, ParseCallback callback )
+    {
+        return( parseAsync( null, bytes, callback ) );
+    }
+    
+    // Parts made by an edit are not taken from the arena, whose parts are
+    // only given back by the next full parse (see "configArena()")
+    private boolean parseEdit( byte[] bytes, int offset, int oldLength, int newLength )
+    {
+        HtmlPart[] arena = ahpArena;
+        ahpArena = null;
+        try
+        {
+            return( parseEditTokens( bytes, offset, oldLength, newLength ) );
+        }
+        finally
+        {
+            ahpArena = arena;
+        }
+    }
+    
+    private boolean parseEditTokens( byte[] bytes, int offset, int oldLength, int newLength )
+    {
+        if( alTokens == null ||
+            !configIncremental ||
+            tokensValidated != configValidate ||
+            tokensImplied != configImpliedEndTags ||
+            bytes == null ||
+            offset < 4 || // BOM
+            oldLength < 0 ||
+            newLength < 0 ||
+            offset + oldLength > inputLength ||
+            bytes.length != inputLength - oldLength + newLength )
+            return( false );
+        
+        // Last point before the edit only read bytes before it, and no
+        // token search ran to the end of the document before it
+        int start = -1;
+        for( int i = 0; i < syncCount; i++ )
+        {
+            int next = i + 1 < syncCount ? aiSyncPos[ i + 1 ] : inputLength;
+            if( next > offset ||
+                aiSyncIssues[ i ] != syncIssueBase )
+                break;
+            start = i;
+        }
+        if( start == -1 ||
+            ( encodingOffset != -1 && aiSyncPos[ start ] < encodingOffset ) )
+            return( false );
+        
+        int delta = newLength - oldLength;
+        ArrayList< HtmlPart > alOldTokens = alTokens;
+        ArrayList< HtmlPart > alOldItems = alItems;
+        IssueList ilOldIssues = ilIssues;
+        int[] aiOldPos = aiSyncPos;
+        int[] aiOldItems = aiSyncItems;
+        int[] aiOldIssues = aiSyncIssues;
+        int oldCount = syncCount;
+        int items0 = aiOldItems[ start ];
+        
+        alItems = new ArrayList< HtmlPart >( Math.max( alOldTokens.size() + 16, 16 ) );
+        alItems.addAll( alOldTokens.subList( 0, items0 ) );
+        ilIssues = new IssueList();
+        ilIssues.addAll( ilOldIssues, 0, aiOldIssues[ start ], 0 );
+        aiSyncPos = Arrays.copyOf( aiOldPos, aiOldPos.length );
+        aiSyncItems = Arrays.copyOf( aiOldItems, aiOldItems.length );
+        aiSyncIssues = Arrays.copyOf( aiOldIssues, aiOldIssues.length );
+        syncCount = start;
+        
+        bb = inputBuffer( bytes.length );
+        bb.put( bytes );
+        bb.position( aiOldPos[ start ] );
+        b = TAG_CLOSE;
+        inputLength = bytes.length;
+        
+        // Tokenize until in step with the previous parse after the edit
+        boolean found = encodingFound;
+        aiResyncPos = aiOldPos;
+        resyncCount = oldCount;
+        resyncFrom = start + 1;
+        resyncMin = offset + newLength;
+        resyncDelta = delta;
+        resyncIndex = -1;
+        try
+        {
+            parse( false );
+        }
+        catch( Exception ex )
+        {
+            return( false );
+        }
+        finally
+        {
+            aiResyncPos = null;
+        }
+        if( encodingFound != found )
+            return( false );
+        
+        // Reuse the rest of the previous tokens, issues and points
+        int resync = resyncIndex;
+        int oldItems1 = resync != -1 ? aiOldItems[ resync ] : alOldTokens.size();
+        int oldIssues1 = resync != -1 ? aiOldIssues[ resync ] : ilOldIssues.size();
+        int items1 = alItems.size();
+        int itemsDelta = items1 - oldItems1;
+        int issuesDelta = ilIssues.size() - oldIssues1;
+        for( int i = oldItems1; i < alOldTokens.size(); i++ )
+        {
+            HtmlPart hp = alOldTokens.get( i );
+            shiftPart( hp, delta );
+            alItems.add( hp );
+        }
+        ilIssues.addAll( ilOldIssues, oldIssues1, ilOldIssues.size(), delta );
+        for( int i = resync + 1; resync != -1 && i < oldCount; i++ )
+        {
+            addSync( aiOldPos[ i ] + delta,
+                     aiOldItems[ i ] + itemsDelta,
+                     aiOldIssues[ i ] + issuesDelta );
+        }
+        
+        alTokens = alItems;
+        if( !tokensValidated )
+            return( true );
+        
+        // Same names in the same order validate the same way
+        boolean sameNames = itemsDelta == 0;
+        for( int i = items0; sameNames && i < items1; i++ )
+        {
+            HtmlPart hp = alOldTokens.get( i );
+            HtmlPart hp2 = alTokens.get( i );
+            sameNames = hp.type == hp2.type &&
+                        ( !isNamePart( hp ) || hp.value.equals( hp2.value ) );
+        }
+        if( sameNames )
+        {
+            for( int i = items0; i < alTokens.size(); i++ )
+            {
+                HtmlPart hp = alTokens.get( i );
+                HtmlPart hp2 = alTokenItems.get( i );
+                hp2.offset = hp.offset;
+                hp2.end = hp.end;
+                if( !( hp.type == HtmlPartType.TAG_START ||
+                       hp.type == HtmlPartType.TAG_EMPTY ||
+                       hp.type == HtmlPartType.TAG_END ) )
+                    hp2.value = hp.value;
             }
+            alItems = alOldItems;
+            return( true );
+        }
+        
+        alItems = new ArrayList< HtmlPart >( alTokens.size() + 16 );
+        for( int i = 0; i < alTokens.size(); i++ )
+            alItems.add( copyPart( alTokens.get( i ) ) );
+        alTokenItems = new ArrayList< HtmlPart >( alItems );
+        doctypeRootElement = "html";
+        try
+        {
+            if( configImpliedEndTags )
+                implyEndTags();
+            balance();
+        }
+        catch( Exception ex )
+        {
+            return( false );
+        }
+        return( true );
+    }
+    
+    // Parts whose value validation looks at
+    private static boolean isNamePart( HtmlPart hp )
+    {
+        return( hp.type == HtmlPartType.TAG_START ||
+                hp.type == HtmlPartType.TAG_EMPTY ||
+                hp.type == HtmlPartType.TAG_END ||
+                hp.type == HtmlPartType.ATTR_NAME ||
+                hp.type == HtmlPartType.ATTR_SOLO );
+    }
+    
+    // Moves a token, including the positions a made up attribute name is of
+    private static void shiftPart( HtmlPart hp, int delta )
+    {
+        hp.offset += delta;
+        if( hp.end != -1 )
+        {
+            hp.end += delta;
+            hp.value = invalidXmlName( hp.offset, hp.end );
         }
-        catch( Exception ex )
+    }
+    
+    // Attribute name made up for the bytes pos0..pos1 of an invalid name
+    private static String invalidXmlName( int pos0, int pos1 )
+    {
+        return( "InvalidXmlName_" + pos0 + "_" + pos1 );
+    }
+    
+    private static boolean regionMatchesIgnoreCase( byte[] bytes, int index, int limit, String s )
+    {
+        if( limit - index < s.length() )
+            return( false );
+        for( int i = 0; i < s.length(); i++ )
         {
-            alIssues.add( "Exception: " + ex.getMessage() );
-            return;
+            int c = bytes[ index + i ];
+            if( c >= 'A' && c <= 'Z' )
+                c += 'a' - 'A';
+            if( c != s.charAt( i ) )
+                return( false );
         }
-        
-        bb.position( 0 );
-        
-        process( encodingOnly );
+        return( true );
+    }
+    
+    private static int indexOf( byte[] bytes, int index, int limit, String s )
+    {
+        for( ; index <= limit - s.length(); index++ )
+        {
+            if( regionMatchesIgnoreCase( bytes, index, limit, s ) )
+                return( index );
+        }
+        return( -1 );
+    }
+    
+    private String sniffDirective( byte[] bytes, int index0, int index1, String search )
+    {
+        String value = new String( bytes, index0, index1 - index0, LATIN1 );
+        int[] range = findEncodingDirective( value, search );
+        if( range == null )
+            return( null );
+        Charset cs = jc.getCharset( value.substring( range[ 0 ], range[ 1 ] ) );
+        if( cs == null )
+            return( encodingTags );
+        return( cs.name() );
+    }
+    
+    // Byte scan for the same directives parse() reacts to, without tokenizing:
+    // "encoding" in processing instructions and "charset" in meta tag values.
+    // Comments, declarations and script/style bodies are skipped.
+    private String sniff( byte[] bytes, int limit )
+    {
+        int i = 0;
+        while( i < limit )
+        {
+            if( bytes[ i++ ] != TAG_OPEN )
+                continue;
+            if( regionMatchesIgnoreCase( bytes, i, limit, "!--" ) )
+            {
+                i = indexOf( bytes, i + 3, limit, "-->" );
+                if( i == -1 )
+                    break;
+                i += 3;
+            }
+            else if( i < limit && bytes[ i ] == TAG_QUESTION )
+            {
+                int end = indexOf( bytes, i + 1, limit, "?>" );
+                if( end == -1 )
+                    break;
+                String encoding = sniffDirective( bytes, i + 1, end, " encoding=" );
+                if( encoding != null )
+                    return( encoding );
+                i = end + 2;
+            }
+            else if( regionMatchesIgnoreCase( bytes, i, limit, "![" ) )
+            {
+                i = indexOf( bytes, i + 2, limit, "]]>" );
+                if( i == -1 )
+                    break;
+                i += 3;
+            }
+            else if( i < limit && ( bytes[ i ] == TAG_EXCLAMATION || bytes[ i ] == TAG_SLASH ) )
+            {
+                while( i < limit && bytes[ i ] != TAG_CLOSE )
+                    i++;
+            }
+            else
+            {
+                int name0 = i;
+                while( i < limit && !isWhiteSpace( bytes[ i ] ) &&
+                       bytes[ i ] != TAG_SLASH && bytes[ i ] != TAG_CLOSE )
+                    i++;
+                int nameLen = i - name0;
+                boolean meta = nameLen == 4 && regionMatchesIgnoreCase( bytes, name0, limit, "meta" );
+                
+                // Attributes, checking values of "meta", a stray TAG_OPEN starts over
+                while( i < limit && bytes[ i ] != TAG_CLOSE && bytes[ i ] != TAG_OPEN )
+                {
+                    if( bytes[ i ] != ATTR_EQUAL )
+                    {
+                        i++;
+                        continue;
+                    }
+                    i++;
+                    while( i < limit && isWhiteSpace( bytes[ i ] ) )
+                        i++;
+                    if( i == limit )
+                        break;
+                    int value0 = i;
+                    if( bytes[ i ] == ATTR_QUOTE1 || bytes[ i ] == ATTR_QUOTE2 )
+                    {
+                        byte quote = bytes[ i ];
+                        value0 = ++i;
+                        while( i < limit && bytes[ i ] != quote && bytes[ i ] != TAG_CLOSE )
+                            i++;
+                    }
+                    else
+                    {
+                        while( i < limit && !isWhiteSpace( bytes[ i ] ) && bytes[ i ] != TAG_CLOSE )
+                            i++;
+                    }
+                    if( i == limit )
+                        break;
+                    if( meta )
+                    {
+                        String encoding = sniffDirective( bytes, value0, i, " charset=" );
+                        if( encoding != null )
+                            return( encoding );
+                    }
+                    if( bytes[ i ] != TAG_CLOSE )
+                        i++;
+                }
+                
+                // Raw text, skip to the end tag
+                String rawText = null;
+                if( nameLen == 6 && regionMatchesIgnoreCase( bytes, name0, limit, "script" ) )
+                    rawText = "</script";
+                else if( nameLen == 5 && regionMatchesIgnoreCase( bytes, name0, limit, "style" ) )
+                    rawText = "</style";
+                if( rawText != null && i < limit && bytes[ i ] == TAG_CLOSE )
+                {
+                    // Only an exact end tag ends it, as in parse()
+                    do
+                    {
+                        i = indexOf( bytes, i + 1, limit, rawText );
+                    }
+                    while( i != -1 && i + rawText.length() < limit &&
+                           bytes[ i + rawText.length() ] != TAG_CLOSE );
+                    if( i == -1 )
+                        break;
+                }
+            }
+        }
+        return( encodingTags );
+    }
+    
+    private byte[] sniffBuffer()
+    {
+        if( abSniff == null || abSniff.length != configSniffLimit )
+            abSniff = new byte[ configSniffLimit ];
+        return( abSniff );
     }
     
     /**
-     * There are four methods to parse the HTML:
-     * parseFile( String file ),
-     * parseData( byte[] bytes ),
-     * parseFileEncodingOnly( String file ),
-     * parseDataEncodingOnly( byte[] bytes ).
-     * <p>
-     * This method parses the file completely, taking the file name
-     * as an argument.
-     * @param file File to be parsed
+     * Returns the character set (encoding) named by the HTML's encoding
+     * directive, looking at no more than the first "configSniffLimit()"
+     * bytes.  Nothing is tokenized or validated, and the results of the
+     * last parse are left alone.  Use it to route documents before
+     * parsing them.
+     * 
+     * @param bytes Byte array to be examined
+     * @return Character set (encoding), "UTF-8" if there's no directive.
      */
-    public void parseFile( String file )
+    public String sniffDataEncoding( byte[] bytes )
     {
-        parseFile( file, false );
+        if( bytes == null )
+            return( encodingTags );
+        return( sniff( bytes, Math.min( bytes.length, configSniffLimit ) ) );
     }
     
     /**
-     * There are four methods to parse the HTML:
-     * parseFile( String file ),
-     * parseData( byte[] bytes ),
-     * parseFileEncodingOnly( String file ),
-     * parseDataEncodingOnly( byte[] bytes ).
-     * <p>
-     * This method parses the file until know the encoding, taking the file
-     * name as an argument.
-     * @param file File to be parsed
+     * Same as "sniffDataEncoding()", reading the beginning of the given
+     * stream.  If the stream supports "mark()" it is reset afterwards,
+     * otherwise the bytes examined are consumed.
+     * 
+     * @param is Stream to be examined
+     * @return Character set (encoding), "UTF-8" if there's no directive.
      */
-    public String parseFileEncodingOnly( String file )
+    public String sniffStreamEncoding( InputStream is )
     {
-        parseFile( file, true );
-        return( encodingText );
+        byte[] bytes = sniffBuffer();
+        int size = 0;
+        try
+        {
+            boolean mark = is.markSupported();
+            if( mark )
+                is.mark( bytes.length );
+            int read = 0;
+            while( read != -1 && size < bytes.length )
+            {
+                read = is.read( bytes, size, bytes.length - size );
+                if( read > 0 )
+                    size += read;
+            }
+            if( mark )
+                is.reset();
+        }
+        catch( Exception ex ) {}
+        return( sniff( bytes, size ) );
     }
     
-    private void parseData( byte[] bytes, boolean encodingOnly )
+    /**
+     * Same as "sniffDataEncoding()", reading the beginning of the given
+     * channel.  A {@link FileChannel} is read from position zero without
+     * changing its position, any other channel has the bytes examined
+     * consumed.  A non-blocking channel is examined as far as it has bytes
+     * ready, reading stops at the first read returning none.
+     * 
+     * @param rbc Channel to be examined
+     * @return Character set (encoding), "UTF-8" if there's no directive.
+     */
+    public String sniffChannelEncoding( ReadableByteChannel rbc )
     {
-        parseReset();
-        
-        if( bytes == null ||
-            bytes.length == 0 )
+        ByteBuffer buf = ByteBuffer.wrap( sniffBuffer() );
+        try
         {
-            alIssues.add( "Buffer is empty" );
-            return;            
+            int read = 1;
+            while( read > 0 && buf.hasRemaining() )
+            {
+                if( rbc instanceof FileChannel )
+                    read = ( ( FileChannel )rbc ).read( buf, buf.position() );
+                else
+                    read = rbc.read( buf );
+            }
         }
-        int size = bytes.length;
-        
-        bb = ByteBuffer.allocate( size );
-        bb.put( bytes );
-        
-        bb.position( 0 );
-        
-        process( encodingOnly );
+        catch( Exception ex ) {}
+        return( sniff( buf.array(), buf.position() ) );
     }
     
     /**
-     * There are four methods to parse the HTML:
-     * parseFile( String file ),
-     * parseData( byte[] bytes ),
-     * parseFileEncodingOnly( String file ),
-     * parseDataEncodingOnly( byte[] bytes ).
-     * <p>
-     * This method parses the file completely, taking a byte array
-     * as an argument.
-     * @param bytes Byte array to be parsed
+     * Same as "sniffStreamEncoding()" for a gzip or deflate (zlib)
+     * compressed stream (see "parseCompressedStream()"), inflating only the
+     * beginning of the document.  The bytes examined are consumed.
+     * 
+     * @param is Compressed stream to be examined
+     * @return Character set (encoding), "UTF-8" if there's no directive.
      */
-    public void parseData( byte[] bytes )
+    public String sniffCompressedStreamEncoding( InputStream is )
     {
-        parseData( bytes, false );
+        try
+        {
+            return( sniffStreamEncoding( inflating( is ) ) );
+        }
+        catch( Exception ex )
+        {
+            return( encodingTags );
+        }
     }
     
     /**
-     * There are four methods to parse the HTML:
-     * parseFile( String file ),
-     * parseData( byte[] bytes ),
-     * parseFileEncodingOnly( String file ),
-     * parseDataEncodingOnly( byte[] bytes ).
-     * <p>
-     * This method parses the file until know the encoding, taking a byte
-     * array as an argument.
-     * @param bytes Byte array to be parsed
+     * Same as "sniffDataEncoding()", reading the beginning of the given
+     * file.
+     * 
+     * @param file File to be examined
+     * @return Character set (encoding), "UTF-8" if there's no directive.
      */
-    public String parseDataEncodingOnly( byte[] bytes )
+    public String sniffFileEncoding( String file )
     {
-        parseData( bytes, true );
-        return( encodingText );
+        try
+        {
+            FileInputStream fis = new FileInputStream( file );
+            try
+            {
+                return( sniffChannelEncoding( fis.getChannel() ) );
+            }
+            finally
+            {
+                fis.close();
+            }
+        }
+        catch( Exception ex )
+        {
+            return( encodingTags );
+        }
     }
     
     /**
@@ -1829,7 +4980,7 @@ public class HtmlParser
      */
     public int getNumParseIssues()
     {
-        return( alIssues.size() );        
+        return( ilIssues.size() );        
     }
 
     private void writeParseIssuesToOutputStream( OutputStream os )
@@ -1841,10 +4992,9 @@ public class HtmlParser
             BOM[ 1 ] = ( byte )0xBB;
             BOM[ 2 ] = ( byte )0xBF;
             os.write( BOM );
-            Iterator< String > it = alIssues.iterator();
-            while( it.hasNext() )
+            for( int i = 0; i < ilIssues.size(); i++ )
             {
-                String s = it.next() + "\n";
+                String s = ilIssues.get( i ) + "\n";
                 byte[] bytes = s.getBytes( encodingTags );
                 os.write( bytes );
             }
@@ -1877,64 +5027,357 @@ public class HtmlParser
     {
         try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            writeParseIssuesToOutputStream( baos );
-            return( baos.toString( encodingTags ) );
+            ByteArrayOutputStream baos = outputStream();
+            writeParseIssuesToOutputStream( baos );
+            String issues = baos.toString( encodingTags );
+            keepOutputStream( baos );
+            return( issues );
+        }
+        catch( Exception ex )
+        {
+            return( "" );
+        }
+    }
+    
+    /**
+     * Returns the number of parse items (tokens) found.  Used for
+     * informational purposes only.
+     * 
+     * @return The number of items (tokens) found during the parse.
+     */
+    public int getNumParseItems()
+    {
+        return( alItems.size() );        
+    }
+       
+    private void writeParseItemsToAppendable( Appendable a ) throws IOException
+    {
+        Iterator< HtmlPart > it = alItems.iterator();
+        int colWidth = 20;
+        StringBuilder sb = new StringBuilder( colWidth );
+        while( it.hasNext() )
+        {
+            HtmlPart hp = it.next();
+            sb.setLength( 0 );
+            sb.append( "offset=" ).append( hp.offset );
+            padColumn( sb, colWidth );
+            a.append( sb );
+            sb.setLength( 0 );
+            sb.append( "type=" ).append( hp.type );
+            padColumn( sb, colWidth );
+            a.append( sb );
+            sb.setLength( 0 );
+            sb.append( "level=" ).append( hp.level );
+            padColumn( sb, colWidth );
+            a.append( sb );
+            a.append( "value~" ).append( hp.value ).append( "~\n" );
+        }
+    }
+    
+    private void padColumn( StringBuilder sb, int colWidth )
+    {
+        while( sb.length() < colWidth )
+            sb.append( space, 0, Math.min( colWidth - sb.length(), space.length() ) );
+    }
+    
+    private void writeParseItemsToOutputStream( OutputStream os )
+    {
+        try
+        {
+            if( encodingText.equals( encodingTags ) ) // encodingTags = UTF-8
+            {
+                byte[] BOM = new byte[ 3 ];
+                BOM[ 0 ] = ( byte )0xEF;
+                BOM[ 1 ] = ( byte )0xBB;
+                BOM[ 2 ] = ( byte )0xBF;
+                os.write( BOM );
+            }
+            Writer w = new BufferedWriter( new OutputStreamWriter( os, encodingText ), 1 << 16 );
+            writeParseItemsToAppendable( w );
+            w.close();
+        }
+        catch( Exception ex ) {}
+    }
+    
+    private static final byte[] PARSE_ITEMS_MAGIC = { 'H', 'P', 'I', 'D' };
+    private static final int PARSE_ITEMS_VERSION = 1;
+    private static final int PARSE_ITEMS_RECORD = 20;
+    
+    private void writeParseItemsBinaryToChannel( WritableByteChannel wbc ) throws IOException
+    {
+        int count = alItems.size();
+        ByteBuffer records = ByteBuffer.allocate( 16 + count * PARSE_ITEMS_RECORD );
+        records.put( PARSE_ITEMS_MAGIC );
+        records.putInt( PARSE_ITEMS_VERSION );
+        records.putInt( count );
+        records.putInt( PARSE_ITEMS_RECORD );
+        
+        // All values are UTF-8 encoded back to back after the records
+        CharsetEncoder ce = UTF8.newEncoder()
+                                   .onMalformedInput( CodingErrorAction.REPLACE )
+                                   .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        int estimate = Math.max( 256, estimateCleanXmlLength() );
+        ByteBuffer values = bbValuesScratch;
+        if( values == null || values.capacity() < estimate )
+            values = ByteBuffer.allocate( estimate );
+        values.clear();
+        Iterator< HtmlPart > it = alItems.iterator();
+        while( it.hasNext() )
+        {
+            HtmlPart hp = it.next();
+            int start = values.position();
+            CharBuffer cb = CharBuffer.wrap( hp.value == null ? "" : hp.value );
+            ce.reset();
+            while( true )
+            {
+                CoderResult cr = ce.encode( cb, values, true );
+                if( !cr.isOverflow() )
+                    cr = ce.flush( values );
+                if( !cr.isOverflow() )
+                    break;
+                ByteBuffer bigger = ByteBuffer.allocate( values.capacity() * 2 );
+                values.flip();
+                bigger.put( values );
+                values = bigger;
+            }
+            records.putInt( hp.offset );
+            records.putInt( hp.level );
+            records.putInt( hp.type.ordinal() );
+            records.putInt( start );
+            records.putInt( values.position() - start );
+        }
+        records.flip();
+        values.flip();
+        if( values.capacity() <= configScratchLimit )
+            bbValuesScratch = values;
+        while( records.hasRemaining() )
+            wbc.write( records );
+        while( values.hasRemaining() )
+            wbc.write( values );
+    }
+    
+    private static final byte[] TOKEN_STREAM_MAGIC = { 'H', 'P', 'T', 'S' };
+    private static final int TOKEN_STREAM_VERSION = 1;
+    
+    private static void writeVarint( OutputStream os, int value ) throws IOException
+    {
+        while( ( value & ~0x7F ) != 0 )
+        {
+            os.write( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        os.write( value );
+    }
+    
+    private static int readVarint( ByteBuffer buf )
+    {
+        int value = 0;
+        for( int shift = 0; shift < 32; shift += 7 )
+        {
+            byte b0 = buf.get();
+            value |= ( b0 & 0x7F ) << shift;
+            if( b0 >= 0 )
+                return( value );
+        }
+        throw new IllegalArgumentException( "Invalid varint at " + buf.position() );
+    }
+    
+    // Zig-zag, small negative numbers stay small
+    private static void writeSignedVarint( OutputStream os, int value ) throws IOException
+    {
+        writeVarint( os, ( value << 1 ) ^ ( value >> 31 ) );
+    }
+    
+    private static int readSignedVarint( ByteBuffer buf )
+    {
+        int value = readVarint( buf );
+        return( ( value >>> 1 ) ^ -( value & 1 ) );
+    }
+    
+    private static int stringIndex( HashMap< String, Integer > hmIndexes, ArrayList< String > alStrings, String s )
+    {
+        Integer index = hmIndexes.get( s );
+        if( index == null )
+        {
+            index = alStrings.size();
+            hmIndexes.put( s, index );
+            alStrings.add( s );
+        }
+        return( index );
+    }
+    
+    /**
+     * Saves the parse items (tokens), issues and encoding to the given
+     * stream in a compact, versioned binary form.  Use "loadParseItems()"
+     * to restore them later, for example from a memory-mapped cache file,
+     * and write the clean XML again without parsing the HTML again.
+     * The stream is flushed but not closed.
+     * <p>
+     * The format is the bytes "HPTS", a version byte, then varints: the
+     * string table (count, then UTF-8 length and bytes of each string),
+     * the input length, encoding and root element (string indexes), the
+     * items (count, then type byte, value string index, zig-zag offset
+     * delta, zig-zag level of each) and the issues (count, then string
+     * index of each).
+     * 
+     * @param os Stream in which to save the parse items.
+     * @throws IOException If the stream throws while writing.
+     */
+    public void saveParseItems( OutputStream os ) throws IOException
+    {
+        HashMap< String, Integer > hmIndexes = new HashMap< String, Integer >();
+        ArrayList< String > alStrings = new ArrayList< String >();
+        int encodingIndex = stringIndex( hmIndexes, alStrings, encodingText );
+        int rootIndex = stringIndex( hmIndexes, alStrings, doctypeRootElement );
+        int[] aiValues = new int[ alItems.size() ];
+        for( int i = 0; i < alItems.size(); i++ )
+            aiValues[ i ] = stringIndex( hmIndexes, alStrings, alItems.get( i ).value );
+        int[] aiIssues = new int[ ilIssues.size() ];
+        for( int i = 0; i < ilIssues.size(); i++ )
+            aiIssues[ i ] = stringIndex( hmIndexes, alStrings, ilIssues.get( i ) );
+        
+        BufferedOutputStream bos = new BufferedOutputStream( os, 1 << 16 );
+        bos.write( TOKEN_STREAM_MAGIC );
+        bos.write( TOKEN_STREAM_VERSION );
+        writeVarint( bos, alStrings.size() );
+        for( int i = 0; i < alStrings.size(); i++ )
+        {
+            byte[] bytes = alStrings.get( i ).getBytes( UTF8 );
+            writeVarint( bos, bytes.length );
+            bos.write( bytes );
+        }
+        writeVarint( bos, inputLength );
+        writeVarint( bos, encodingIndex );
+        writeVarint( bos, rootIndex );
+        writeVarint( bos, alItems.size() );
+        int prevOffset = 0;
+        for( int i = 0; i < alItems.size(); i++ )
+        {
+            HtmlPart hp = alItems.get( i );
+            bos.write( hp.type.ordinal() );
+            writeVarint( bos, aiValues[ i ] );
+            writeSignedVarint( bos, hp.offset - prevOffset );
+            writeSignedVarint( bos, hp.level );
+            prevOffset = hp.offset;
+        }
+        writeVarint( bos, aiIssues.length );
+        for( int i = 0; i < aiIssues.length; i++ )
+            writeVarint( bos, aiIssues[ i ] );
+        bos.flush();
+    }
+    
+    /**
+     * Restores parse items (tokens), issues and encoding saved by
+     * "saveParseItems()", replacing the current ones.  The buffer may be
+     * heap, direct or memory-mapped, it's read from its position up to
+     * its limit.  Afterwards the clean XML can be written as if the
+     * HTML had just been parsed.  An invalid buffer is reported as a
+     * parse issue.
+     * 
+     * @param buf Buffer holding saved parse items.
+     */
+    public void loadParseItems( ByteBuffer buf )
+    {
+        parseReset();
+        bb = null;
+        readParseItems( buf );
+    }
+    
+    // Reads a count of things taking at least the given number of bytes
+    // each, checked against what's left so that a bad count can't make
+    // huge arrays
+    private static int readCount( ByteBuffer buf, int bytes )
+    {
+        int count = readVarint( buf );
+        if( count < 0 || count > buf.remaining() / bytes )
+            throw new IllegalArgumentException( "Count " + count + " past the end" );
+        return( count );
+    }
+    
+    private void readParseItems( ByteBuffer buf )
+    {
+        try
+        {
+            for( int i = 0; i < TOKEN_STREAM_MAGIC.length; i++ )
+            {
+                if( buf.get() != TOKEN_STREAM_MAGIC[ i ] )
+                    throw new IllegalArgumentException( "Not saved parse items" );
+            }
+            int version = buf.get();
+            if( version != TOKEN_STREAM_VERSION )
+                throw new IllegalArgumentException( "Unsupported version " + version );
+            String[] strings = new String[ readCount( buf, 1 ) ];
+            for( int i = 0; i < strings.length; i++ )
+            {
+                int len = readCount( buf, 1 );
+                if( buf.hasArray() )
+                {
+                    strings[ i ] = decode( buf.array(), buf.arrayOffset() + buf.position(), len, decoderTags );
+                    buf.position( buf.position() + len );
+                }
+                else
+                {
+                    if( abScratch.length < len )
+                        abScratch = new byte[ Math.max( len, abScratch.length * 2 ) ];
+                    buf.get( abScratch, 0, len );
+                    strings[ i ] = decode( abScratch, 0, len, decoderTags );
+                }
+            }
+            inputLength = readVarint( buf );
+            setEncodingText( strings[ readVarint( buf ) ] );
+            encodingFound = true;
+            doctypeRootElement = strings[ readVarint( buf ) ];
+            HtmlPartType[] types = HtmlPartType.values();
+            int count = readCount( buf, 4 );
+            alItems.ensureCapacity( count );
+            int offset = 0;
+            for( int i = 0; i < count; i++ )
+            {
+                HtmlPart hp = newPart();
+                hp.type = types[ buf.get() ];
+                hp.value = strings[ readVarint( buf ) ];
+                offset += readSignedVarint( buf );
+                hp.offset = offset;
+                hp.level = readSignedVarint( buf );
+                alItems.add( hp );
+            }
+            count = readCount( buf, 1 );
+            for( int i = 0; i < count; i++ )
+                ilIssues.add( strings[ readVarint( buf ) ] );
         }
         catch( Exception ex )
         {
-            return( "" );
+            alItems.clear();
+            ilIssues.add( "Invalid saved parse items: " + ex );
         }
     }
     
     /**
-     * Returns the number of parse items (tokens) found.  Used for
-     * informational purposes only.
+     * Writes the parse items (tokens) to a given file in a compact binary
+     * form that tools can memory-map.  All numbers are big-endian 32 bit
+     * integers.  The header is the bytes "HPID", the version (1), the number
+     * of items and the record size (20).  Each item record is offset, level,
+     * type, value start and value length, where type is 0 to 12 in the
+     * order TAG_START, TAG_EMPTY, TAG_END, TAG_DECL, TAG_DECL2, TAG_PI,
+     * TAG_COMMENT, ATTR_NAME, ATTR_VALUE, ATTR_SOLO, TEXT, TEXT_SCRIPT,
+     * TEXT_STYLE.  The UTF-8 values follow the records, value start being
+     * relative to the first byte after the last record.
      * 
-     * @return The number of items (tokens) found during the parse.
+     * @param file File in which to write parse items (tokens).
      */
-    public int getNumParseItems()
-    {
-        return( alItems.size() );        
-    }
-       
-    private void writeParseItemsToOutputStream( OutputStream os )
+    public void writeParseItemsBinaryToFile( String file )
     {
         try
         {
-            if( encodingText.equals( encodingTags ) ) // encodingTags = UTF-8
+            FileOutputStream fos = new FileOutputStream( file );
+            try
             {
-                byte[] BOM = new byte[ 3 ];
-                BOM[ 0 ] = ( byte )0xEF;
-                BOM[ 1 ] = ( byte )0xBB;
-                BOM[ 2 ] = ( byte )0xBF;
-                os.write( BOM );
+                writeParseItemsBinaryToChannel( fos.getChannel() );
             }
-            Iterator< HtmlPart > it = alItems.iterator();
-            int colWidth = 20;
-            while( it.hasNext() )
+            finally
             {
-                HtmlPart hp = it.next();
-                String s0 = "offset=" + hp.offset;
-                byte[] bytes = s0.getBytes( encodingText );
-                os.write( bytes );
-                for( int i = 0; i < colWidth - s0.length(); i++ )
-                    os.write( ATTR_SPACE );
-                String s1 = "type=" + hp.type;
-                bytes = s1.getBytes( encodingText );
-                os.write( bytes );
-                for( int i = 0; i < colWidth - s1.length(); i++ )
-                    os.write( ATTR_SPACE );
-                String s2 = "level=" + hp.level;
-                bytes = s2.getBytes( encodingText );
-                os.write( bytes );
-                for( int i = 0; i < colWidth - s2.length(); i++ )
-                    os.write( ATTR_SPACE );
-                String s3 = "value~" + hp.value + "~\n";
-                bytes = s3.getBytes( encodingText );
-                os.write( bytes );
+                fos.close();
             }
-            os.close();
         }
         catch( Exception ex ) {}
     }
@@ -1963,9 +5406,11 @@ public class HtmlParser
     {
         try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            writeParseItemsToOutputStream( baos );
-            return( baos.toString( encodingText ) );
+            StringBuilder sb = new StringBuilder( alItems.size() * 80 + 16 );
+            if( encodingText.equals( encodingTags ) ) // encodingTags = UTF-8
+                sb.append( '\uFEFF' ); // BOM
+            writeParseItemsToAppendable( sb );
+            return( sb.toString() );
         }
         catch( Exception ex )
         {
@@ -1973,149 +5418,459 @@ public class HtmlParser
         }
     }
     
-    private void writeCleanXmlToOutputStream( OutputStream os )
+    /**
+     * Returns the attributes of each start (or empty) tag of an element, in
+     * document order.  Attributes are looked up by lower case name, values
+     * are as in the clean XML and an attribute without a value has its name
+     * as value.  The first of a duplicate name is kept.  Built when called,
+     * from the parse items: with "configExtractElements()" only the
+     * elements and attributes asked for are kept, so this is how the
+     * results of extraction mode are read.
+     * 
+     * @param element Element name, in any case
+     * @return A read only map of attributes per tag.
+     */
+    public List< Map< String, String > > getElementAttributes( String element )
     {
-        try
+        String name = element.toLowerCase( Locale.ENGLISH );
+        ArrayList< Map< String, String > > alAttrs = new ArrayList< Map< String, String > >();
+        AttrTable atAttrs = null;
+        for( int i = 0; i < alItems.size(); i++ )
         {
-            if( encodingText.equals( encodingTags ) ) // encodingTags = UTF-8
+            HtmlPart hp = alItems.get( i );
+            if( hp.type == HtmlPartType.TAG_START ||
+                hp.type == HtmlPartType.TAG_EMPTY )
             {
-                byte[] BOM = new byte[ 3 ];
-                BOM[ 0 ] = ( byte )0xEF;
-                BOM[ 1 ] = ( byte )0xBB;
-                BOM[ 2 ] = ( byte )0xBF;
-                os.write( BOM );
-            }
-            
-            Iterator< HtmlPart > it = alItems.iterator();
-            boolean prevTagStart = false;
-            boolean prevTagEmpty = false;
-                       
-            while( it.hasNext() )
-            {
-                HtmlPart hp = it.next();
-                String s = "";
-                if( !( hp.type == HtmlPartType.ATTR_NAME ||
-                       hp.type == HtmlPartType.ATTR_VALUE ||
-                       hp.type == HtmlPartType.ATTR_SOLO ) )
-                {
-                    if( prevTagStart )
-                    {
-                        s += ">";
-                        prevTagStart = false;
-                    }
-                    if( prevTagEmpty )
-                    {
-                        s += "/>";
-                        prevTagEmpty = false;
-                    }
-                }
-                if( hp.type == HtmlPartType.TAG_START )
-                {
-                    prevTagStart = true;
-                    if( configElemAttrLowerCase )
-                        s += "<" + hp.value.toLowerCase( Locale.ENGLISH ); // open for attributes
-                    else
-                        s += "<" + hp.value; // open for attributes
-                }   
-                else if( hp.type == HtmlPartType.TAG_EMPTY )
-                {
-                    prevTagEmpty = true;
-                    if( configElemAttrLowerCase )
-                        s += "<" + hp.value.toLowerCase( Locale.ENGLISH ); // open for attributes
-                    else
-                        s += "<" + hp.value; // open for attributes
-                }
-                else if( hp.type == HtmlPartType.TAG_END )
-                {
-                    if( configElemAttrLowerCase )
-                        s += "</" + hp.value.toLowerCase( Locale.ENGLISH ) + ">";
-                    else
-                        s += "</" + hp.value + ">";
-                }
-                else if( hp.type == HtmlPartType.TAG_DECL )
-                {
-                    // Other DOCTYPEs cause issue with Java XML Parser
-                    // Must be the first element (erase anything before it)
-                    // As for the other declarations, commenting them out for now (TODO)
-                    if( hp.value.toUpperCase().startsWith( "DOCTYPE" ) )
-                        s = "<!DOCTYPE " + doctypeRootElement + ">";
-                    else
-                        s += "<!-- " + hp.value + " -->";
-                }
-                else if( hp.type == HtmlPartType.TAG_DECL2 )
-                {
-                    s += "<![" + hp.value + "]]>";
-                }
-                else if( hp.type == HtmlPartType.TAG_PI )
-                {
-                    s += "<?" + hp.value + "?>";
-                }
-                else if( hp.type == HtmlPartType.TAG_COMMENT )
-                {
-                    s += "<!--" + hp.value + "-->";
-                }
-                else if( hp.type == HtmlPartType.ATTR_NAME )
-                {
-                    if( configElemAttrLowerCase )
-                        s += " " + hp.value.toLowerCase( Locale.ENGLISH ) + "="; // open for attribute value
-                    else
-                        s += " " + hp.value + "="; // open for attribute value
-                }
-                else if( hp.type == HtmlPartType.ATTR_VALUE )
+                atAttrs = null;
+                if( hp.value.toLowerCase( Locale.ENGLISH ).equals( name ) )
                 {
-                    int index = hp.value.indexOf( ATTR_QUOTE2 );
-                    if( index == -1 )
-                        s += ( char )ATTR_QUOTE2 + hp.value + ( char )ATTR_QUOTE2;
-                    else
-                        s += ( char )ATTR_QUOTE1 + hp.value + ( char )ATTR_QUOTE1;
-                }
-                else if( hp.type == HtmlPartType.ATTR_SOLO )
-                {
-                    s += " " + hp.value + "=" + "\"" + hp.value + "\"";
-                }
-                else if( hp.type == HtmlPartType.TEXT )
-                {
-                    s += hp.value;
+                    atAttrs = new AttrTable();
+                    alAttrs.add( atAttrs );
                 }
-                else if( hp.type == HtmlPartType.TEXT_SCRIPT )
+            }
+            else if( atAttrs != null &&
+                     hp.type == HtmlPartType.ATTR_NAME )
+            {
+                String value = "";
+                if( i + 1 < alItems.size() &&
+                    alItems.get( i + 1 ).type == HtmlPartType.ATTR_VALUE )
+                    value = alItems.get( ++i ).value;
+                atAttrs.add( hp.value.toLowerCase( Locale.ENGLISH ), value );
+            }
+            else if( atAttrs != null &&
+                     hp.type == HtmlPartType.ATTR_SOLO )
+            {
+                atAttrs.add( hp.value.toLowerCase( Locale.ENGLISH ), hp.value );
+            }
+            else if( hp.type != HtmlPartType.ATTR_VALUE )
+                atAttrs = null;
+        }
+        return( alAttrs );
+    }
+    
+    /**
+     * Returns the text of the document, each text token (outside of script
+     * and style) that isn't empty in document order, as in the clean XML.  With
+     * "configExtractText()" this is how the results of extraction mode are
+     * read, only the text tokens having been kept.
+     * 
+     * @return A read only list of the text tokens.
+     */
+    public List< String > getExtractedText()
+    {
+        ArrayList< String > alText = new ArrayList< String >();
+        for( int i = 0; i < alItems.size(); i++ )
+        {
+            HtmlPart hp = alItems.get( i );
+            if( hp.type == HtmlPartType.TEXT &&
+                hp.value.length() > 0 )
+                alText.add( hp.value );
+        }
+        return( Collections.unmodifiableList( alText ) );
+    }
+    
+    // The clean XML methods can't render the tokens kept by extraction mode
+    private void checkCleanXml()
+    {
+        if( extracted )
+            throw new IllegalStateException( "No clean XML in extraction mode" );
+    }
+    
+    // xmlEncoding: replaces the encoding named in the XML declaration, if not null
+    private void writeCleanXmlToAppendable( Appendable a, String xmlEncoding ) throws IOException
+    {
+        Iterator< HtmlPart > it = alItems.iterator();
+        boolean prevTagStart = false;
+        boolean prevTagEmpty = false;
+                   
+        while( it.hasNext() )
+        {
+            HtmlPart hp = it.next();
+            if( !( hp.type == HtmlPartType.ATTR_NAME ||
+                   hp.type == HtmlPartType.ATTR_VALUE ||
+                   hp.type == HtmlPartType.ATTR_SOLO ) )
+            {
+                // Other DOCTYPEs cause issue with Java XML Parser
+                // Must be the first element (erase anything before it)
+                boolean doctype = hp.type == HtmlPartType.TAG_DECL &&
+                                  hp.value.toUpperCase().startsWith( "DOCTYPE" );
+                if( prevTagStart )
                 {
-                    if( hp.value.length() > 0 &&
-                        hp.value.toUpperCase( Locale.ENGLISH ).indexOf( "CDATA" ) == -1 )
-                        s += "//<![CDATA[" + hp.value + "//]]>";
-                    else
-                        s += hp.value;
+                    if( !doctype )
+                        a.append( '>' );
+                    prevTagStart = false;
                 }
-                else if( hp.type == HtmlPartType.TEXT_STYLE )
+                if( prevTagEmpty )
                 {
-                    s += hp.value;
+                    if( !doctype )
+                        a.append( "/>" );
+                    prevTagEmpty = false;
                 }
-                byte[] bytes = s.getBytes( encodingText );
-                os.write( bytes );
             }
-            if( prevTagStart )
+            if( hp.type == HtmlPartType.TAG_START )
             {
-                String s = ">";
-                byte[] bytes = s.getBytes( encodingText );
-                os.write( bytes );
+                prevTagStart = true;
+                a.append( '<' ); // open for attributes
+                appendName( a, hp.value );
+            }   
+            else if( hp.type == HtmlPartType.TAG_EMPTY )
+            {
+                prevTagEmpty = true;
+                a.append( '<' ); // open for attributes
+                appendName( a, hp.value );
+            }
+            else if( hp.type == HtmlPartType.TAG_END )
+            {
+                a.append( "</" );
+                appendName( a, hp.value );
+                a.append( '>' );
+            }
+            else if( hp.type == HtmlPartType.TAG_DECL )
+            {
+                // As for the other declarations, commenting them out for now (TODO)
+                if( hp.value.toUpperCase().startsWith( "DOCTYPE" ) )
+                    a.append( "<!DOCTYPE " ).append( doctypeRootElement ).append( '>' );
+                else
+                    a.append( "<!-- " ).append( hp.value ).append( " -->" );
+            }
+            else if( hp.type == HtmlPartType.TAG_DECL2 )
+            {
+                a.append( "<![" ).append( hp.value ).append( "]]>" );
+            }
+            else if( hp.type == HtmlPartType.TAG_PI )
+            {
+                int[] range = null;
+                if( xmlEncoding != null && hp.value.startsWith( "xml" ) )
+                    range = findEncodingDirective( hp.value, " encoding=" );
+                if( range != null )
+                    a.append( "<?" ).append( hp.value, 0, range[ 0 ] ).append( xmlEncoding )
+                     .append( hp.value, range[ 1 ], hp.value.length() ).append( "?>" );
+                else
+                    a.append( "<?" ).append( hp.value ).append( "?>" );
+            }
+            else if( hp.type == HtmlPartType.TAG_COMMENT )
+            {
+                a.append( "<!--" ).append( hp.value ).append( "-->" );
+            }
+            else if( hp.type == HtmlPartType.ATTR_NAME )
+            {
+                a.append( ' ' );
+                appendName( a, hp.value );
+                a.append( '=' ); // open for attribute value
+            }
+            else if( hp.type == HtmlPartType.ATTR_VALUE )
+            {
+                char quote = ( char )ATTR_QUOTE2;
+                if( hp.value.indexOf( ATTR_QUOTE2 ) != -1 )
+                    quote = ( char )ATTR_QUOTE1;
+                a.append( quote ).append( hp.value ).append( quote );
+            }
+            else if( hp.type == HtmlPartType.ATTR_SOLO )
+            {
+                a.append( ' ' ).append( hp.value ).append( "=\"" ).append( hp.value ).append( '"' );
+            }
+            else if( hp.type == HtmlPartType.TEXT )
+            {
+                a.append( hp.value );
             }
-            if( prevTagEmpty )
+            else if( hp.type == HtmlPartType.TEXT_SCRIPT )
+            {
+                if( hp.value.length() > 0 &&
+                    hp.value.toUpperCase( Locale.ENGLISH ).indexOf( "CDATA" ) == -1 )
+                    a.append( "//<![CDATA[" ).append( hp.value ).append( "//]]>" );
+                else
+                    a.append( hp.value );
+            }
+            else if( hp.type == HtmlPartType.TEXT_STYLE )
+            {
+                a.append( hp.value );
+            }
+        }
+        if( prevTagStart )
+            a.append( '>' );
+        if( prevTagEmpty )
+            a.append( "/>" );
+    }
+    
+    private void appendName( Appendable a, String name ) throws IOException
+    {
+        if( configElemAttrLowerCase )
+            a.append( name.toLowerCase( Locale.ENGLISH ) );
+        else
+            a.append( name );
+    }
+    
+    // Rough size of the clean XML in characters, used to pre-size buffers
+    private int estimateCleanXmlLength()
+    {
+        return( inputLength + ( inputLength >> 3 ) + 16 );
+    }
+    
+    // Resolve target character set, default is the HTML file's own, then
+    // by Java's own names and aliases
+    private Charset cleanXmlCharset( String charset )
+    {
+        if( charset == null )
+            return( Charset.forName( encodingText ) );
+        Charset cs = jc.getCharset( charset );
+        if( cs != null )
+            return( cs );
+        try
+        {
+            return( Charset.forName( charset ) );
+        }
+        catch( IllegalArgumentException ex ) // unsupported or illegal name
+        {
+            throw new UnsupportedCharsetException( charset );
+        }
+    }
+    
+    private void writeCleanXmlToOutputStream( OutputStream os, String charset ) throws IOException
+    {
+        Charset cs = cleanXmlCharset( charset );
+        String xmlEncoding = null;
+        if( !cs.name().equals( encodingText ) )
+            xmlEncoding = cs.name();
+        
+        if( cs.name().equals( encodingTags ) ) // encodingTags = UTF-8
+        {
+            byte[] BOM = new byte[ 3 ];
+            BOM[ 0 ] = ( byte )0xEF;
+            BOM[ 1 ] = ( byte )0xBB;
+            BOM[ 2 ] = ( byte )0xBF;
+            os.write( BOM );
+        }
+        // Tokens are encoded one by one as they are written
+        Writer w = new BufferedWriter( new OutputStreamWriter( os, cs ) );
+        writeCleanXmlToAppendable( w, xmlEncoding );
+        w.flush();
+    }
+    
+    // Encodes the characters appended straight into a byte buffer, drained
+    // into the channel whenever full, if any
+    private static class BufferAppendable implements Appendable
+    {
+        private CharsetEncoder ce;
+        private CharBuffer cb = CharBuffer.allocate( 1 << 13 );
+        private ByteBuffer out;
+        private WritableByteChannel wbc;
+        
+        public BufferAppendable( Charset cs, ByteBuffer out, WritableByteChannel wbc )
+        {
+            ce = cs.newEncoder()
+                   .onMalformedInput( CodingErrorAction.REPLACE )
+                   .onUnmappableCharacter( CodingErrorAction.REPLACE );
+            this.out = out;
+            this.wbc = wbc;
+        }
+        
+        public Appendable append( char c ) throws IOException
+        {
+            if( !cb.hasRemaining() )
+                encode( false );
+            cb.put( c );
+            return( this );
+        }
+        
+        public Appendable append( CharSequence csq ) throws IOException
+        {
+            return( append( csq, 0, csq.length() ) );
+        }
+        
+        public Appendable append( CharSequence csq, int start, int end ) throws IOException
+        {
+            while( start < end )
             {
-                String s = "/>";
-                byte[] bytes = s.getBytes( encodingText );
-                os.write( bytes );                
+                if( !cb.hasRemaining() )
+                    encode( false );
+                int n = Math.min( end - start, cb.remaining() );
+                if( csq instanceof String )
+                    cb.put( ( String )csq, start, start + n );
+                else
+                {
+                    for( int i = start; i < start + n; i++ )
+                        cb.put( csq.charAt( i ) );
+                }
+                start += n;
             }
+            return( this );
+        }
+        
+        // A high surrogate left at the end waits for the next characters
+        private void encode( boolean end ) throws IOException
+        {
+            cb.flip();
+            while( ce.encode( cb, out, end ).isOverflow() )
+                drain();
+            cb.compact();
+        }
+        
+        private void drain() throws IOException
+        {
+            if( wbc == null )
+                throw new BufferOverflowException();
+            out.flip();
+            while( out.hasRemaining() )
+                wbc.write( out );
+            out.clear();
+        }
+        
+        public void finish() throws IOException
+        {
+            encode( true );
+            while( ce.flush( out ).isOverflow() )
+                drain();
+            if( wbc != null )
+                drain();
+        }
+    }
+    
+    private void writeCleanXmlToBuffer( ByteBuffer buf, WritableByteChannel wbc, String charset ) throws IOException
+    {
+        Charset cs = cleanXmlCharset( charset );
+        String xmlEncoding = null;
+        if( !cs.name().equals( encodingText ) )
+            xmlEncoding = cs.name();
+        
+        BufferAppendable ba = new BufferAppendable( cs, buf, wbc );
+        if( cs.name().equals( encodingTags ) ) // encodingTags = UTF-8
+            ba.append( '\uFEFF' ); // BOM
+        writeCleanXmlToAppendable( ba, xmlEncoding );
+        ba.finish();
+    }
+    
+    private void writeCleanXmlToOutputStream( OutputStream os )
+    {
+        try
+        {
+            writeCleanXmlToOutputStream( os, null );
             os.close();
         }
         catch( Exception ex ) {}
     }
     
+    /**
+     * Appends the clean XML to the given {@link Appendable} (for example a
+     * {@link StringBuilder}, {@link Writer} or {@link java.nio.CharBuffer}).
+     * The characters are appended as-is, no encoding takes place and no
+     * byte order mark is written.
+     * 
+     * @param a Destination for the clean XML.
+     * @throws IOException If the destination throws while appending.
+     * @throws IllegalStateException After a parse in extraction mode.
+     */
+    public void writeCleanXml( Appendable a ) throws IOException
+    {
+        checkCleanXml();
+        writeCleanXmlToAppendable( a, null );
+    }
+    
+    /**
+     * Writes the clean XML to the given stream, transcoding it into the
+     * given character set (for example "UTF-8") while it is written.  The
+     * encoding named in an XML declaration is changed to match, and a
+     * byte order mark is written for UTF-8.  The stream is flushed but
+     * not closed.
+     * 
+     * @param os Stream in which to write the clean XML.
+     * @param charset Character set of the output, null for the HTML file's own.
+     * @throws IOException If the stream throws while writing.
+     * @throws UnsupportedCharsetException If the character set isn't known.
+     * @throws IllegalStateException After a parse in extraction mode.
+     */
+    public void writeCleanXml( OutputStream os, String charset ) throws IOException
+    {
+        checkCleanXml();
+        writeCleanXmlToOutputStream( os, charset );
+    }
+    
+    /**
+     * Same as "writeCleanXml( OutputStream, String )", encoding the clean
+     * XML straight into the given buffer (heap or direct) from its position,
+     * which is moved past it.
+     * 
+     * @param buf Buffer in which to write the clean XML.
+     * @param charset Character set of the output, null for the HTML file's own.
+     * @throws BufferOverflowException If the clean XML doesn't fit, the
+     * position is then left unchanged.
+     * @throws UnsupportedCharsetException If the character set isn't known.
+     * @throws IllegalStateException After a parse in extraction mode.
+     */
+    public void writeCleanXml( ByteBuffer buf, String charset )
+    {
+        checkCleanXml();
+        int position = buf.position();
+        try
+        {
+            writeCleanXmlToBuffer( buf, null, charset );
+        }
+        catch( BufferOverflowException ex )
+        {
+            buf.position( position );
+            throw ex;
+        }
+        catch( IOException ex ) {} // not thrown without a channel
+    }
+    
+    /**
+     * Same as "writeCleanXml( OutputStream, String )", encoding the clean
+     * XML into a direct buffer written to the given channel whenever full.
+     * The channel is not closed.
+     * 
+     * @param wbc Channel in which to write the clean XML.
+     * @param charset Character set of the output, null for the HTML file's own.
+     * @throws IOException If the channel throws while writing.
+     * @throws UnsupportedCharsetException If the character set isn't known.
+     * @throws IllegalStateException After a parse in extraction mode.
+     */
+    public void writeCleanXml( WritableByteChannel wbc, String charset ) throws IOException
+    {
+        checkCleanXml();
+        ByteBuffer buf = bbChannelScratch;
+        bbChannelScratch = null;
+        if( buf == null )
+            buf = ByteBuffer.allocateDirect( 1 << 16 );
+        buf.clear();
+        try
+        {
+            writeCleanXmlToBuffer( buf, wbc, charset );
+        }
+        finally
+        {
+            if( buf.capacity() <= configScratchLimit )
+                bbChannelScratch = buf;
+        }
+    }
+    
     /**
      * Writes the clean XML to given file.
      * 
      * @param file File in which to write the clean XML.
+     * @throws IllegalStateException After a parse in extraction mode.
      */
     public void writeCleanXmlToFile( String file )
     {
+        checkCleanXml();
         try
         {
             FileOutputStream fos = new FileOutputStream( file );
@@ -2124,18 +5879,52 @@ public class HtmlParser
         catch( Exception ex ) {}
     }
     
+    /**
+     * Writes the clean XML to given file, transcoding it into the given
+     * character set (for example "UTF-8") while it is written.
+     * 
+     * @param file File in which to write the clean XML.
+     * @param charset Character set of the file.
+     * @throws UnsupportedCharsetException If the character set isn't known.
+     * @throws IllegalStateException After a parse in extraction mode.
+     */
+    public void writeCleanXmlToFile( String file, String charset )
+    {
+        checkCleanXml();
+        cleanXmlCharset( charset );
+        try
+        {
+            FileOutputStream fos = new FileOutputStream( file );
+            try
+            {
+                writeCleanXmlToOutputStream( fos, charset );
+            }
+            finally
+            {
+                fos.close();
+            }
+        }
+        catch( Exception ex ) {}
+    }
+    
     /**
      * Returns the clean XML as a string.
      * 
      * @return The clean XML.
+     * @throws IllegalStateException After a parse in extraction mode.
      */
     public String getCleanXml()
     {
+        checkCleanXml();
         try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            writeCleanXmlToOutputStream( baos );
-            return( baos.toString( encodingText ) );
+            StringBuilder sb = chars( estimateCleanXmlLength() );
+            if( encodingText.equals( encodingTags ) ) // encodingTags = UTF-8
+                sb.append( '\uFEFF' ); // BOM
+            writeCleanXmlToAppendable( sb, null );
+            String xml = sb.toString();
+            keepChars( sb );
+            return( xml );
         }
         catch( Exception ex )
         {
@@ -0,0 +1,245 @@
+//------------------------------------------------------------------------------
+// Copyright (C) 2011 by Free Java Code
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//------------------------------------------------------------------------------
+
+package freejavacode.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of parse results, shared by any number of
+ * {@link HtmlParser} instances (see "HtmlParser.configCache()").  Results
+ * are keyed by a 128 bit hash of the input bytes plus the parser
+ * configuration that changes the parse items, and are kept as saved
+ * parse items (see "HtmlParser.saveParseItems()").  When the total size
+ * of the saved items goes over the limit, the least recently used are
+ * evicted.  All methods are thread safe.
+ * 
+ * @author Free Java Code
+ *
+ */
+public class ParseCache
+{
+    static class Key
+    {
+        private long hash0;
+        private long hash1;
+        private int length;
+        private int config;
+        
+        public boolean equals( Object o )
+        {
+            if( !( o instanceof Key ) )
+                return( false );
+            Key k = ( Key )o;
+            return( hash0 == k.hash0 &&
+                    hash1 == k.hash1 &&
+                    length == k.length &&
+                    config == k.config );
+        }
+        
+        public int hashCode()
+        {
+            return( ( int )hash0 );
+        }
+    };
+    
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    
+    private LinkedHashMap< Key, byte[] > lhmEntries = new LinkedHashMap< Key, byte[] >( 16, 0.75f, true );
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    
+    /**
+     * Creates an empty cache.
+     * 
+     * @param maxBytes Maximum total size of the cached results in bytes.
+     */
+    public ParseCache( long maxBytes )
+    {
+        this.maxBytes = maxBytes;
+    }
+    
+    private static long fmix( long k )
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return( k );
+    }
+    
+    // Murmur3 style hash, eight bytes at a time, of the bytes between the
+    // buffer's position and limit (heap or direct, the position is kept)
+    static Key key( ByteBuffer data, int config )
+    {
+        ByteBuffer buf = data.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        int length = buf.remaining();
+        long h0 = 0x9368e53c2f6af274L ^ length;
+        long h1 = 0x586dcd208f7cd3fdL ^ config;
+        while( buf.remaining() >= 16 )
+        {
+            long k0 = buf.getLong();
+            long k1 = buf.getLong();
+            k0 *= C1;
+            k0 = Long.rotateLeft( k0, 31 );
+            k0 *= C2;
+            h0 ^= k0;
+            h0 = Long.rotateLeft( h0, 27 ) + h1;
+            h0 = h0 * 5 + 0x52dce729;
+            k1 *= C2;
+            k1 = Long.rotateLeft( k1, 33 );
+            k1 *= C1;
+            h1 ^= k1;
+            h1 = Long.rotateLeft( h1, 31 ) + h0;
+            h1 = h1 * 5 + 0x38495ab5;
+        }
+        long k0 = 0;
+        long k1 = 0;
+        for( int i = 0; buf.hasRemaining(); i++ )
+        {
+            long k = buf.get() & 0xFFL;
+            if( i < 8 )
+                k0 |= k << ( i * 8 );
+            else
+                k1 |= k << ( ( i - 8 ) * 8 );
+        }
+        k0 *= C1;
+        k0 = Long.rotateLeft( k0, 31 );
+        k0 *= C2;
+        h0 ^= k0;
+        k1 *= C2;
+        k1 = Long.rotateLeft( k1, 33 );
+        k1 *= C1;
+        h1 ^= k1;
+        h0 += h1;
+        h1 += h0;
+        h0 = fmix( h0 );
+        h1 = fmix( h1 );
+        h0 += h1;
+        h1 += h0;
+        
+        Key key = new Key();
+        key.hash0 = h0;
+        key.hash1 = h1;
+        key.length = length;
+        key.config = config;
+        return( key );
+    }
+    
+    synchronized byte[] get( Key key )
+    {
+        byte[] entry = lhmEntries.get( key );
+        if( entry == null )
+            misses++;
+        else
+            hits++;
+        return( entry );
+    }
+    
+    synchronized void put( Key key, byte[] entry )
+    {
+        if( entry.length > maxBytes )
+            return;
+        byte[] old = lhmEntries.put( key, entry );
+        if( old != null )
+            bytes -= old.length;
+        bytes += entry.length;
+        Iterator< Map.Entry< Key, byte[] > > it = lhmEntries.entrySet().iterator();
+        while( bytes > maxBytes && it.hasNext() )
+        {
+            bytes -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+    
+    /**
+     * Returns the number of lookups that found a cached result.
+     * 
+     * @return The number of hits.
+     */
+    public synchronized long getHits()
+    {
+        return( hits );
+    }
+    
+    /**
+     * Returns the number of lookups that didn't find a cached result.
+     * 
+     * @return The number of misses.
+     */
+    public synchronized long getMisses()
+    {
+        return( misses );
+    }
+    
+    /**
+     * Returns the number of results evicted to stay under the size limit.
+     * 
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictions()
+    {
+        return( evictions );
+    }
+    
+    /**
+     * Returns the number of cached results.
+     * 
+     * @return The number of entries.
+     */
+    public synchronized int getNumEntries()
+    {
+        return( lhmEntries.size() );
+    }
+    
+    /**
+     * Returns the total size of the cached results.
+     * 
+     * @return The size in bytes.
+     */
+    public synchronized long getSize()
+    {
+        return( bytes );
+    }
+    
+    /**
+     * Removes all cached results and zeroes the counters.
+     */
+    public synchronized void clear()
+    {
+        lhmEntries.clear();
+        bytes = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+}
@@ -0,0 +1,49 @@
+//------------------------------------------------------------------------------
+// Copyright (C) 2011 by Free Java Code
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//------------------------------------------------------------------------------
+
+
+package freejavacode.parser;
+
+/**
+ * Called when a document handed to "HtmlParser.parseFileAsync()" or
+ * "HtmlParser.parseDataAsync()" has been parsed, on the executor's thread,
+ * so that the caller never has to wait on the returned future.
+ * 
+ * @author Free Java Code
+ *
+ */
+public interface ParseCallback
+{
+    /**
+     * Called with the results of the parse.
+     * 
+     * @param result The results, kept apart from the parser.
+     */
+    void parsed( ParseResult result );
+    
+    /**
+     * Called instead of "parsed()" if the parse threw.
+     * 
+     * @param t What the parse threw.
+     */
+    void failed( Throwable t );
+}
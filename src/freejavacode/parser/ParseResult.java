@@ -0,0 +1,209 @@
+//------------------------------------------------------------------------------
+// Copyright (C) 2011 by Free Java Code
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//------------------------------------------------------------------------------
+
+
+package freejavacode.parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of parsing one document, as returned by the "parse()" methods of
+ * {@link HtmlParser}, "HtmlParser.parseAll()", "HtmlParser.parseFileAsync()"
+ * and "HtmlParser.parseDataAsync()".  A snapshot of the parse items (tokens)
+ * and issues kept apart from the parser, so that it can go on to the next
+ * document while another thread writes the results.  The clean XML and the
+ * other strings are rendered when asked for, the same as the parser's "get"
+ * and "write" methods return right after the parse.  Immutable.
+ * 
+ * @author Free Java Code
+ *
+ */
+public class ParseResult
+{
+    // Parse items as parallel arrays, types by ordinal
+    final byte[] abTypes;
+    final String[] asValues;
+    final int[] aiOffsets;
+    final int[] aiLevels;
+    final String[] asIssues;
+    final String encoding;
+    final String doctypeRootElement;
+    final boolean elemAttrLowerCase;
+    final boolean extracted;
+    final int numInputBytes;
+    private final long parseTime;
+    
+    ParseResult( byte[] abTypes, String[] asValues, int[] aiOffsets, int[] aiLevels, String[] asIssues,
+                 String encoding, String doctypeRootElement, boolean elemAttrLowerCase, boolean extracted,
+                 int numInputBytes, long parseTime )
+    {
+        this.abTypes = abTypes;
+        this.asValues = asValues;
+        this.aiOffsets = aiOffsets;
+        this.aiLevels = aiLevels;
+        this.asIssues = asIssues;
+        this.encoding = encoding;
+        this.doctypeRootElement = doctypeRootElement;
+        this.elemAttrLowerCase = elemAttrLowerCase;
+        this.extracted = extracted;
+        this.numInputBytes = numInputBytes;
+        this.parseTime = parseTime;
+    }
+    
+    /**
+     * Returns the encoding of the document (see "HtmlParser.getEncoding()").
+     * 
+     * @return The encoding.
+     */
+    public String getEncoding()
+    {
+        return( encoding );
+    }
+    
+    /**
+     * Returns the clean XML (see "HtmlParser.getCleanXml()"), rendered
+     * again on each call.
+     * 
+     * @return The clean XML.
+     * @throws IllegalStateException If parsed in extraction mode.
+     */
+    public String getCleanXml()
+    {
+        return( new HtmlParser( this, true ).getCleanXml() );
+    }
+    
+    /**
+     * Appends the clean XML to the given {@link Appendable} (see
+     * "HtmlParser.writeCleanXml( Appendable )").
+     * 
+     * @param a Destination for the clean XML.
+     * @throws IOException If the destination throws while appending.
+     * @throws IllegalStateException If parsed in extraction mode.
+     */
+    public void writeCleanXml( Appendable a ) throws IOException
+    {
+        new HtmlParser( this, true ).writeCleanXml( a );
+    }
+    
+    /**
+     * Writes the clean XML to the given stream, transcoding it into the
+     * given character set (see "HtmlParser.writeCleanXml( OutputStream,
+     * String )").
+     * 
+     * @param os Stream in which to write the clean XML.
+     * @param charset Character set of the output, null for the document's own.
+     * @throws IOException If the stream throws while writing.
+     * @throws java.nio.charset.UnsupportedCharsetException If the character
+     * set isn't known.
+     * @throws IllegalStateException If parsed in extraction mode.
+     */
+    public void writeCleanXml( OutputStream os, String charset ) throws IOException
+    {
+        new HtmlParser( this, true ).writeCleanXml( os, charset );
+    }
+    
+    /**
+     * Returns the text tokens (see "HtmlParser.getExtractedText()").
+     * 
+     * @return A read only list of the text tokens.
+     */
+    public List< String > getExtractedText()
+    {
+        return( new HtmlParser( this, true ).getExtractedText() );
+    }
+    
+    /**
+     * Returns the attributes of each tag of an element (see
+     * "HtmlParser.getElementAttributes()").
+     * 
+     * @param element Element name, in any case
+     * @return A read only map of attributes per tag.
+     */
+    public List< Map< String, String > > getElementAttributes( String element )
+    {
+        return( new HtmlParser( this, true ).getElementAttributes( element ) );
+    }
+    
+    /**
+     * Returns the parse items as a string (see "HtmlParser.getParseItems()").
+     * 
+     * @return The parse items.
+     */
+    public String getParseItems()
+    {
+        return( new HtmlParser( this, true ).getParseItems() );
+    }
+    
+    /**
+     * Returns the parse issues as a string (see "HtmlParser.getParseIssues()").
+     * 
+     * @return The parse issues.
+     */
+    public String getParseIssues()
+    {
+        return( new HtmlParser( this, false ).getParseIssues() );
+    }
+    
+    /**
+     * Returns the number of parse issues.
+     * 
+     * @return The number of issues found during the parse.
+     */
+    public int getNumParseIssues()
+    {
+        return( asIssues.length );
+    }
+    
+    /**
+     * Returns the number of parse items (tokens) found.
+     * 
+     * @return The number of items (tokens) found during the parse.
+     */
+    public int getNumParseItems()
+    {
+        return( asValues.length );
+    }
+    
+    /**
+     * Returns the size of the document parsed.
+     * 
+     * @return The number of bytes parsed, zero if none could be read.
+     */
+    public int getNumInputBytes()
+    {
+        return( numInputBytes );
+    }
+    
+    /**
+     * Returns the time the parse took, not counting the rendering of the
+     * clean XML and the other strings.
+     * 
+     * @return The time of the parse in nanoseconds.
+     */
+    public long getParseTime()
+    {
+        return( parseTime );
+    }
+}
@@ -0,0 +1,230 @@
+//------------------------------------------------------------------------------
+// Copyright (C) 2011 by Free Java Code
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//------------------------------------------------------------------------------
+
+
+package freejavacode.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Walks the records of an uncompressed WARC archive through a memory
+ * mapping of the file, handing out their blocks as slices of the mapping
+ * (see "HtmlParser.parseArchive()").  Archives larger than a mapping are
+ * mapped a window at a time, each record must fit in one.
+ * 
+ * @author Free Java Code
+ *
+ */
+class WarcReader
+{
+    static class Record
+    {
+        public HashMap< String, String > hmHeaders = new HashMap< String, String >();
+        public ByteBuffer block;
+        public long offset;
+        public String unsupported = null;
+        
+        // Header by its lower case name
+        public String header( String name )
+        {
+            return( hmHeaders.get( name ) );
+        }
+        
+        // HTML payload of a response or resource record, null if none;
+        // sets unsupported if the payload can't be read as it is
+        public ByteBuffer html()
+        {
+            String type = header( "warc-type" );
+            String contentType = header( "content-type" );
+            if( type == null || contentType == null )
+                return( null );
+            contentType = contentType.toLowerCase( Locale.ENGLISH );
+            if( type.equals( "resource" ) )
+                return( isHtml( contentType ) ? block.duplicate() : null );
+            if( !type.equals( "response" ) ||
+                !contentType.startsWith( "application/http" ) )
+                return( null );
+            
+            // HTTP message: status line and headers, then the payload
+            ByteBuffer buf = block.duplicate();
+            HashMap< String, String > hmHttp = new HashMap< String, String >();
+            String status = readLine( buf );
+            if( status == null || !status.startsWith( "HTTP/" ) )
+                return( null );
+            if( !readHeaders( buf, hmHttp ) )
+                return( null );
+            String httpType = hmHttp.get( "content-type" );
+            if( httpType == null || !isHtml( httpType.toLowerCase( Locale.ENGLISH ) ) )
+                return( null );
+            String transfer = hmHttp.get( "transfer-encoding" );
+            String encoding = hmHttp.get( "content-encoding" );
+            if( transfer != null && !transfer.equalsIgnoreCase( "identity" ) )
+                unsupported = "Transfer-Encoding " + transfer;
+            else if( encoding != null && !encoding.equalsIgnoreCase( "identity" ) )
+                unsupported = "Content-Encoding " + encoding;
+            if( unsupported != null )
+                return( null );
+            return( buf.slice() );
+        }
+    };
+    
+    private static final int WINDOW = 1 << 30;
+    private static final int MAX_HEADER = 1 << 16;
+    
+    private FileChannel fc;
+    private long size;
+    private long position = 0;
+    private MappedByteBuffer mbb = null;
+    private long mapStart = 0;
+    
+    public WarcReader( FileChannel fc ) throws IOException
+    {
+        this.fc = fc;
+        size = fc.size();
+    }
+    
+    private static boolean isHtml( String contentType )
+    {
+        return( contentType.startsWith( "text/html" ) ||
+                contentType.startsWith( "application/xhtml+xml" ) );
+    }
+    
+    // Line up to LF (CR dropped) as ISO-8859-1, null at the end of the buffer
+    private static String readLine( ByteBuffer buf )
+    {
+        int start = buf.position();
+        int limit = buf.limit();
+        for( int i = start; i < limit; i++ )
+        {
+            if( buf.get( i ) != '\n' )
+                continue;
+            int end = i > start && buf.get( i - 1 ) == '\r' ? i - 1 : i;
+            char[] ac = new char[ end - start ];
+            for( int j = 0; j < ac.length; j++ )
+                ac[ j ] = ( char )( buf.get( start + j ) & 0xFF );
+            buf.position( i + 1 );
+            return( new String( ac ) );
+        }
+        return( null );
+    }
+    
+    // "Name: value" lines up to an empty line, names in lower case;
+    // false if the buffer ends first
+    private static boolean readHeaders( ByteBuffer buf, HashMap< String, String > hmHeaders )
+    {
+        String name = null;
+        while( true )
+        {
+            String line = readLine( buf );
+            if( line == null )
+                return( false );
+            if( line.length() == 0 )
+                return( true );
+            if( ( line.charAt( 0 ) == ' ' || line.charAt( 0 ) == '\t' ) && name != null )
+            {
+                hmHeaders.put( name, hmHeaders.get( name ) + " " + line.trim() );
+                continue;
+            }
+            int colon = line.indexOf( ':' );
+            if( colon <= 0 )
+                continue;
+            name = line.substring( 0, colon ).trim().toLowerCase( Locale.ENGLISH );
+            hmHeaders.put( name, line.substring( colon + 1 ).trim() );
+        }
+    }
+    
+    // Maps the window starting at the given offset, at least length bytes
+    private void map( long offset, long length ) throws IOException
+    {
+        if( length > Integer.MAX_VALUE )
+            throw new IOException( "Record at " + offset + " is larger than " + Integer.MAX_VALUE );
+        long max = Math.max( WINDOW, length );
+        mbb = fc.map( FileChannel.MapMode.READ_ONLY, offset, Math.min( size - offset, max ) );
+        mapStart = offset;
+    }
+    
+    /**
+     * Returns the next record, null at the end of the archive.
+     * 
+     * @return The record, its block a slice of the mapping.
+     * @throws IOException If the archive can't be mapped or a record header
+     * is malformed.
+     */
+    public Record next() throws IOException
+    {
+        // Records are separated by CRLF CRLF, tolerate any line ends
+        while( true )
+        {
+            if( position >= size )
+                return( null );
+            if( mbb == null || position >= mapStart + mbb.limit() )
+                map( position, 1 );
+            byte c = mbb.get( ( int )( position - mapStart ) );
+            if( c != '\r' && c != '\n' )
+                break;
+            position++;
+        }
+        
+        // The header must be in the window
+        if( mapStart + mbb.limit() < Math.min( size, position + MAX_HEADER ) )
+            map( position, Math.min( size - position, MAX_HEADER ) );
+        Record r = new Record();
+        r.offset = position;
+        ByteBuffer buf = mbb.duplicate();
+        buf.position( ( int )( position - mapStart ) );
+        String version = readLine( buf );
+        if( version == null || !version.startsWith( "WARC/" ) )
+            throw new IOException( "No WARC record at " + position );
+        if( !readHeaders( buf, r.hmHeaders ) )
+            throw new IOException( "Incomplete WARC record header at " + position );
+        
+        long length;
+        try
+        {
+            length = Long.parseLong( r.header( "content-length" ) );
+        }
+        catch( Exception ex )
+        {
+            throw new IOException( "Invalid Content-Length in WARC record at " + position );
+        }
+        long blockStart = mapStart + buf.position();
+        if( length < 0 || blockStart + length > size )
+            throw new IOException( "Truncated WARC record at " + position );
+        if( blockStart + length > mapStart + mbb.limit() )
+        {
+            long headerLength = blockStart - position;
+            map( position, headerLength + length );
+            blockStart = position + headerLength;
+        }
+        buf = mbb.duplicate();
+        buf.position( ( int )( blockStart - mapStart ) );
+        buf.limit( ( int )( blockStart - mapStart + length ) );
+        r.block = buf.slice();
+        position = blockStart + length;
+        return( r );
+    }
+}
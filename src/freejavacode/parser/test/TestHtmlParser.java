@@ -24,7 +24,6 @@ package freejavacode.parser.test;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -34,7 +33,6 @@ import java.util.HashMap;
 import java.util.Set;
 
 import freejavacode.parser.HtmlParser;
-import freejavacode.parser.JavaCharsets;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -48,8 +46,6 @@ import javax.xml.parsers.DocumentBuilderFactory;
  */
 public class TestHtmlParser
 {
-    JavaCharsets jc = new JavaCharsets();
-    
     /**
      * Sends file into Java's built-in XML parser.  This is the ultimate goal
      * of the {@link HtmlParser} class -- converting rogue HTML from the
@@ -81,6 +77,78 @@ public class TestHtmlParser
         }
     }
     
+    /**
+     * Edits one byte of the file back and forth many times, parsing each
+     * edit incrementally with recycled parse items, and checks that the
+     * results stay the same as parsing the edited bytes completely.
+     * 
+     * @param file file to be edited
+     * @param edits number of edits
+     * @return success or failure
+     */
+    public boolean verifyIncrementalEdits( String file, int edits )
+    {
+        try
+        {
+            File f = new File( file );
+            byte[] bytes = new byte[ ( int )f.length() ];
+            FileInputStream fis = new FileInputStream( f );
+            try
+            {
+                int size = 0;
+                while( size < bytes.length )
+                    size += fis.read( bytes, size, bytes.length - size );
+            }
+            finally
+            {
+                fis.close();
+            }
+            
+            // A letter in the second half, outside of the encoding's reach
+            int offset = -1;
+            for( int i = bytes.length / 2; i < bytes.length && offset == -1; i++ )
+            {
+                if( bytes[ i ] >= 'a' && bytes[ i ] <= 'z' )
+                    offset = i;
+            }
+            if( offset == -1 )
+                return( true );
+            byte original = bytes[ offset ];
+            
+            HtmlParser hp = new HtmlParser();
+            hp.configArena( true );
+            hp.configIncremental( true );
+            hp.parseData( bytes );
+            int items = hp.getNumParseItems();
+            for( int i = 0; i < edits; i++ )
+            {
+                bytes[ offset ] = i % 2 == 0 ? ( byte )'x' : original;
+                hp.parseDataEdit( bytes, offset, 1, 1 );
+            }
+            HtmlParser full = new HtmlParser();
+            full.parseData( bytes );
+            if( hp.getNumParseItems() != full.getNumParseItems() ||
+                !hp.getCleanXml().equals( full.getCleanXml() ) ||
+                !hp.getParseIssues().equals( full.getParseIssues() ) )
+            {
+                System.out.println( "Incremental Edits Unsuccessful for " + file +
+                                    " (items " + items + " -> " + hp.getNumParseItems() + ")" );
+                return( false );
+            }
+            System.out.println( "Incremental Edits Successful for " + file );
+            return( true );
+        }
+        catch( Exception ex )
+        {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter( sw );
+            ex.printStackTrace( pw );
+            System.out.println( sw );
+            System.out.println( "Incremental Edits Unsuccessful for " + file );
+            return( false );
+        }
+    }
+    
     private HashMap< String, String > hmEntityNamesValues = new HashMap< String, String >();
     
     /**
@@ -360,6 +428,19 @@ public class TestHtmlParser
         for( int i = 0; i < files.length; i++ )
         {
             File f = new File( args[ 0 ] + "/" + files[ i ] );
+            if( f.isFile() &&
+                f.getName().endsWith( ".warc" ) )
+            {
+                // Archive of pages (see "sample.warc"), cleaned into a companion archive
+                String original = f.getAbsolutePath();
+                System.out.println( "Processing... " + original );
+                int records = hp.parseArchive( original, original + "--clean-warc.out" );
+                System.out.println( "parseArchive (records=" + records + ") (" +
+                                    "parse-issues=" + hp.getNumParseIssues() + ")" );
+                if( hp.getNumParseIssues() > 0 )
+                    hp.writeParseIssuesToFile( original + "--parse-issues.out" );
+                continue;
+            }
             if( f.isFile() &&                
                 f.getName().endsWith( ".html" ) ||
                 f.getName().endsWith( ".htm" ) ||
@@ -372,6 +453,7 @@ public class TestHtmlParser
                                     "parse-items=" + hp.getNumParseItems() + ") (" +
                                     "parse-issues=" + hp.getNumParseIssues() + ")" );
                 hp.writeParseItemsToFile( original + "--parse-items.out" );
+                verifyIncrementalEdits( original, 1000 );
                 if( hp.getNumParseIssues() > 0 )
                 {
                     hp.writeParseIssuesToFile( original + "--parse-issues.out" );
@@ -385,19 +467,8 @@ public class TestHtmlParser
                 }
                 else
                 {
-                    // Note: Charset not changed within html file
-                    try
-                    {
-                        FileOutputStream fos = new FileOutputStream( original + "--clean-utf8.xml" );
-                        byte[] BOM = new byte[ 3 ];
-                        BOM[ 0 ] = ( byte )0xEF;
-                        BOM[ 1 ] = ( byte )0xBB;
-                        BOM[ 2 ] = ( byte )0xBF;
-                        fos.write( BOM );
-                        fos.write( jc.convertString( hp.getCleanXml(), "UTF-8" ).getBytes( "UTF-8" ) );
-                        fos.close();
-                    }
-                    catch( Exception ex ) {}
+                    // Transcoded into UTF-8 while being written
+                    hp.writeCleanXmlToFile( original + "--clean-utf8.xml", "UTF-8" );
                     xmlParsingSuccess = verifyXmlParsing( original + "--clean-utf8.xml" );
                 }
                 if( xmlParsingSuccess )